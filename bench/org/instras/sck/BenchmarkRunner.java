@@ -0,0 +1,139 @@
+package org.instras.sck;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Small benchmark harness used in place of JMH, since the project is built without a dependency manager.
+ * Each benchmark is warmed up, then timed over several iterations, and the result is reported in ops/s
+ * together with the bytes allocated per op by the benchmark thread.
+ */
+public class BenchmarkRunner {
+    /**
+     * The operation to measure. The returned value is consumed so the JIT can't remove the work
+     */
+    public interface Op {
+        long run(int i) throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final int warmupMS;
+
+    private final int measureMS;
+
+    private final int iterations;
+
+    private final String filter;
+
+    private long sink; // consumes the results of the ops
+
+    /**
+     * Create a runner
+     *
+     * @param warmupMS time to run each benchmark before measuring
+     * @param measureMS time for each measured iteration
+     * @param iterations number of measured iterations
+     * @param filter only run benchmarks whose name contains this, or null to run all of them
+     */
+    public BenchmarkRunner(int warmupMS, int measureMS, int iterations, String filter) {
+        this.warmupMS = warmupMS;
+        this.measureMS = measureMS;
+        this.iterations = iterations;
+        this.filter = filter;
+    }
+
+    /**
+     * Create a runner from the bench.warmup, bench.time, bench.iterations and bench.filter system properties
+     */
+    public BenchmarkRunner() {
+        this(Integer.getInteger("bench.warmup", 2000), Integer.getInteger("bench.time", 1000),
+                Integer.getInteger("bench.iterations", 5), System.getProperty("bench.filter"));
+    }
+
+    /**
+     * Check if a benchmark is selected by the filter
+     *
+     * @param name
+     * @return
+     */
+    public boolean isSelected(String name) {
+        return filter == null || name.contains(filter);
+    }
+
+    /**
+     * Print the header for the results table
+     */
+    public static void printHeader() {
+        System.out.println(String.format("%-40s %14s %12s %12s", "Benchmark", "ops/s", "us/op", "B/op"));
+    }
+
+    /**
+     * Run a benchmark and print the result
+     *
+     * @param name
+     * @param op
+     */
+    public void run(String name, Op op) throws Exception {
+        if(!isSelected(name)) return;
+
+        loop(op, warmupMS);
+
+        double bestOpsPerSec = 0;
+        long totalOps = 0;
+        long totalBytes = 0;
+
+        for(int i = 0; i < iterations; i++) {
+            long bytesBefore = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long start = System.nanoTime();
+            long ops = loop(op, measureMS);
+            long elapsed = System.nanoTime() - start;
+            long bytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytesBefore;
+
+            bestOpsPerSec = Math.max(bestOpsPerSec, ops*1e9/elapsed);
+            totalOps += ops;
+            totalBytes += bytes;
+        }
+
+        System.out.println(String.format("%-40s %14.1f %12.3f %12.1f", name, bestOpsPerSec,
+                1e6/bestOpsPerSec, (double)totalBytes/totalOps));
+    }
+
+    /**
+     * Run the op repeatedly for the given time. The ops are run in batches which grow until a batch takes
+     * about 100 us, so the clock reads don't dominate very fast ops and slow ops don't overrun the time
+     *
+     * @return the number of ops run
+     */
+    private long loop(Op op, int timeMS) throws Exception {
+        long now = System.nanoTime();
+        long end = now + timeMS*1000000L;
+        long ops = 0;
+        int batch = 1;
+
+        while(now < end) {
+            long batchStart = now;
+            for(int i = 0; i < batch; i++) {
+                sink += op.run(i);
+            }
+
+            ops += batch;
+            now = System.nanoTime();
+
+            if(now - batchStart < 100000 && batch < 65536) {
+                batch *= 2;
+            }
+        }
+
+        return ops;
+    }
+
+    /**
+     * Get the consumed results, so the sink isn't optimized away
+     *
+     * @return
+     */
+    public long getSink() {
+        return sink;
+    }
+}
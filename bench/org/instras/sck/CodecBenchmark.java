@@ -0,0 +1,69 @@
+package org.instras.sck;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the response parsing and command encoding, comparing the string based path to the allocation
+ * free one. The round trips go through a loopback transport which answers on the calling thread, so the
+ * bytes allocated per op cover both the sending and the receiving side.
+ *
+ * Run with: java -cp out:lib/* org.instras.sck.CodecBenchmark
+ */
+public class CodecBenchmark {
+    /**
+     * Transport which answers every command right away with the same MiM style RPM response
+     */
+    static class LoopbackTransport implements SCKTransport {
+        private final byte[] reply = "RPM,1234:TT\r\n".getBytes();
+
+        private Listener listener;
+
+        @Override
+        public void open() { }
+
+        @Override
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            listener.dataReceived(reply, 0, reply.length);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        MiMTalk miMTalk = new MiMTalk();
+
+        final String response = "RPM,1234:TT";
+        final byte[] responseBytes = response.getBytes();
+        final byte[] setRPM = "SetRPM".getBytes();
+        final byte[] getRPM = "GetRPM".getBytes();
+        final byte[] out = new byte[64];
+
+        LineFrameCodec codec = new LineFrameCodec(LineFrameCodec.MIM_TERMINATOR, (buffer, offset, length) -> { });
+
+        CommandPipeline pipeline = new CommandPipeline(new LoopbackTransport(), LineFrameCodec.MIM_TERMINATOR);
+
+        BenchmarkRunner.printHeader();
+
+        runner.run("parse.string (getResponseValue)", i -> Integer.parseInt(miMTalk.getResponseValue(response)));
+        runner.run("parse.bytes (parseValue)", i -> LineFrameCodec.parseValue(responseBytes, 0, responseBytes.length));
+        runner.run("encode.string", i -> codec.encode("SetRPM," + (1000 + i)).length);
+        runner.run("encode.bytes", i -> codec.encode(setRPM, 1000 + i, out));
+        runner.run("roundtrip.string (submit/get)",
+                i -> Integer.parseInt(miMTalk.getResponseValue(pipeline.submit("GetRPM", true).get(1, TimeUnit.SECONDS))));
+        runner.run("roundtrip.bytes (queryInt)", i -> pipeline.queryInt(getRPM, LineFrameCodec.NO_VALUE, 1000));
+
+        System.out.println("\nsink: " + runner.getSink());
+    }
+}
@@ -0,0 +1,90 @@
+package org.instras.sck;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmarks for the command round trip and ramp hot paths, run against the in-JVM MiM and Tic simulators so
+ * results can be compared before a change goes on the production coaters. Results are reported in ops/s and
+ * bytes allocated per op on the benchmark thread (the simulators run on their own threads).
+ *
+ * Run with: java -cp out:lib/* [-Dbench.latency=2] [-Dbench.filter=getRPM] org.instras.sck.SCKBenchmarks
+ */
+public class SCKBenchmarks {
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        int latency = Integer.getInteger("bench.latency", 2); // simulated device response time in ms
+
+        MiMSimulator miMSimulator = new MiMSimulator();
+        miMSimulator.setLatency(latency, 0);
+        miMSimulator.setNoise(5);
+
+        MiMTalk miMTalk = new MiMTalk();
+        miMTalk.connect(miMSimulator);
+        miMTalk.motorOn();
+        miMTalk.setRPM(3000);
+
+        TicSimulator ticSimulator = new TicSimulator();
+        ticSimulator.setLatency(latency, 0);
+
+        TicTalk ticTalk = new TicTalk();
+        ticTalk.connect(ticSimulator);
+        ticTalk.motorOn();
+        ticTalk.setRPM(3000);
+
+        // a motor profile for the regression benchmark
+        HashMap<String, Double[]> profile = new HashMap<String, Double[]>();
+        Double[] x = new Double[18];
+        Double[] y = new Double[18];
+        for(int i = 0; i < x.length; i++) {
+            int pwm = 110 + i*50;
+            x[i] = (double)pwm;
+            y[i] = MiMSimulator.steadyStateRPM(pwm);
+        }
+        profile.put("x", x);
+        profile.put("y", y);
+
+        System.out.println("Simulated device latency: " + latency + " ms\n");
+        BenchmarkRunner.printHeader();
+
+        runner.run("mim.sendCommand (GetVersion)", i -> miMTalk.sendCommand("GetVersion").length());
+
+        runner.run("mim.sendCommandAsync x16 (GetRPM)", i -> {
+            List<Future<String>> responses = new ArrayList<Future<String>>(16);
+            for(int j = 0; j < 16; j++) {
+                responses.add(miMTalk.sendCommandAsync("GetRPM"));
+            }
+
+            long total = 0;
+            for(Future<String> response: responses) {
+                total += response.get().length();
+            }
+
+            return total;
+        });
+
+        runner.run("mim.getRPM", i -> miMTalk.getRPM(0));
+        runner.run("tic.getRPM", i -> ticTalk.getRPM(0));
+        runner.run("mim.getResponseValue", i -> Integer.parseInt(miMTalk.getResponseValue("RPM,1234:TT")));
+        runner.run("LinearRegression.new", i -> (long)new LinearRegression(profile).slope());
+
+        OnlineRegression onlineRegression = new OnlineRegression(x.length);
+        runner.run("OnlineRegression.add (window 18)", i -> {
+            onlineRegression.add(x[i%x.length], y[i%x.length]);
+            return (long)onlineRegression.slope();
+        });
+
+        runner.run("mim.rampToRPM (0-2000 @ 4000 rpm/s)", i -> {
+            miMTalk.setRPM(0);
+            return miMTalk.rampToRPM(2000, 4000, 0, null, null);
+        });
+
+        System.out.println("\nsink: " + runner.getSink());
+
+        miMTalk.motorOff();
+        ticTalk.motorOff();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,149 @@
+package org.instras.sck;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Remembers the HC-05/HC-06 modules found by Bluetooth inquiries and their RFCOMM connection URLs, so a unit
+ * can be reconnected straight away instead of waiting for a device inquiry and SPP service search each time.
+ * The entries are kept in a properties file, keyed by the Bluetooth address of the module.
+ */
+public class BluetoothDeviceCache {
+    public static final String DEFAULT_FILENAME = "bluetooth_devices.properties";
+
+    private final String filename;
+
+    private final Properties properties = new Properties();
+
+    /**
+     * Create a cache stored in the default file in the working directory
+     */
+    public BluetoothDeviceCache() {
+        this(DEFAULT_FILENAME);
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param filename the file the entries are kept in
+     */
+    public BluetoothDeviceCache(String filename) {
+        this.filename = filename;
+        load();
+    }
+
+    /**
+     * Load the entries from the file, if it exists
+     */
+    public synchronized void load() {
+        try (FileReader fileReader = new FileReader(filename)) {
+            properties.clear();
+            properties.load(fileReader);
+        } catch (IOException e) {
+            // no devices cached yet
+        }
+    }
+
+    /**
+     * Save the entries to the file
+     */
+    public synchronized void save() {
+        try (FileWriter output = new FileWriter(filename)) {
+            properties.store(output, "SCKTalk Bluetooth Devices");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Add or update a device and save the cache
+     *
+     * @param address the Bluetooth address
+     * @param name the friendly name, i.e. HC-06
+     * @param connectionURL the btspp:// connection url from the service search
+     */
+    public synchronized void put(String address, String name, String connectionURL) {
+        properties.setProperty(address + ".name", name);
+        properties.setProperty(address + ".url", connectionURL);
+        save();
+    }
+
+    /**
+     * Record a successful connection, so the device most recently used is tried first
+     *
+     * @param address
+     */
+    public synchronized void markConnected(String address) {
+        properties.setProperty(address + ".lastConnected", "" + System.currentTimeMillis());
+        save();
+    }
+
+    /**
+     * Remove a device, i.e. when it's no longer found by an inquiry
+     *
+     * @param address
+     */
+    public synchronized void remove(String address) {
+        properties.remove(address + ".name");
+        properties.remove(address + ".url");
+        properties.remove(address + ".lastConnected");
+        save();
+    }
+
+    /**
+     * Get the connection url of a device
+     *
+     * @param address
+     * @return the url or null if the device isn't cached
+     */
+    public synchronized String getURL(String address) {
+        return properties.getProperty(address + ".url");
+    }
+
+    /**
+     * Get the friendly name of a device
+     *
+     * @param address
+     * @return the name or null if the device isn't cached
+     */
+    public synchronized String getName(String address) {
+        return properties.getProperty(address + ".name");
+    }
+
+    /**
+     * Get the addresses of the cached devices
+     *
+     * @return the addresses, the most recently connected first
+     */
+    public synchronized List<String> getAddresses() {
+        List<String> addresses = new ArrayList<String>();
+
+        for(String key: properties.stringPropertyNames()) {
+            if(key.endsWith(".url")) {
+                addresses.add(key.substring(0, key.length() - ".url".length()));
+            }
+        }
+
+        Collections.sort(addresses, (a, b) -> Long.compare(getLastConnected(b), getLastConnected(a)));
+        return addresses;
+    }
+
+    /**
+     * Get when a device was last connected to
+     *
+     * @param address
+     * @return the time in milliseconds or 0 if never
+     */
+    private long getLastConnected(String address) {
+        try {
+            return Long.parseLong(properties.getProperty(address + ".lastConnected", "0"));
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.instras.sck;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnection;
+import java.io.IOException;
+
+/**
+ * Transport over a Bluetooth RFCOMM (SPP) connection using the Bluecove library, i.e. to an HC-05/HC-06 module
+ * or the ESP32 bridge. The connection URL comes from the SPP service search.
+ */
+public class BluetoothTransport extends StreamTransport {
+    private final String connectionURL;
+
+    private StreamConnection streamConnection;
+
+    /**
+     * Create a Bluetooth transport
+     *
+     * @param connectionURL the btspp:// connection url
+     */
+    public BluetoothTransport(String connectionURL) {
+        this.connectionURL = connectionURL;
+    }
+
+    @Override
+    protected void openStreams() throws IOException {
+        streamConnection = (StreamConnection) Connector.open(connectionURL);
+
+        outs = streamConnection.openOutputStream();
+        ins = streamConnection.openInputStream();
+    }
+
+    @Override
+    protected void closeStreams() {
+        try {
+            if(ins != null) ins.close();
+            if(outs != null) outs.close();
+            if(streamConnection != null) streamConnection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected String getName() {
+        return connectionURL;
+    }
+}
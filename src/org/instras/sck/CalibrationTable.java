@@ -0,0 +1,253 @@
+package org.instras.sck;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Properties;
+
+/**
+ * Host side calibration of the BLDC motor, used to set the pwm directly instead of relying on the single
+ * slope and intercept line stored on the MiM board, which is poor at low speed where the motor curve bends.
+ * The model is a piecewise linear fit through the points of a motor profile, made monotonic by dropping any
+ * point whose speed doesn't rise with the pwm, i.e. a noisy reading. It is compiled into a dense table holding
+ * the pwm for every rpm step up to the highest profiled speed, so converting a speed is a single array read.
+ *
+ * Speeds below the slowest profiled point map to the pwm of that point, since the motor can't run reliably any
+ * slower, and speeds above the fastest point map to its pwm.
+ */
+public class CalibrationTable {
+    public static final String DEFAULT_FILENAME = "motor_calibration.properties";
+
+    public static final int DEFAULT_RPM_STEP = 5; // rpm between the table entries
+
+    private final int[] pwms; // the model points, in rising pwm and rpm order
+
+    private final int[] rpms;
+
+    private final int rpmStep;
+
+    private final int[] table; // the pwm for rpm = index*rpmStep
+
+    private CalibrationTable(int[] pwms, int[] rpms, int rpmStep) {
+        this.pwms = pwms;
+        this.rpms = rpms;
+        this.rpmStep = rpmStep;
+
+        int last = rpms.length - 1;
+        table = new int[rpms[last]/rpmStep + 1];
+
+        int j = 0;
+        for(int k = 0; k < table.length; k++) {
+            int rpm = k*rpmStep;
+
+            if(rpm <= rpms[0]) {
+                table[k] = pwms[0];
+                continue;
+            }
+
+            while(j < last - 1 && rpms[j + 1] < rpm) j++;
+
+            double fraction = (rpm - rpms[j])/(double)(rpms[j + 1] - rpms[j]);
+            table[k] = (int)Math.round(pwms[j] + fraction*(pwms[j + 1] - pwms[j]));
+        }
+    }
+
+    /**
+     * Fit a calibration to profile points
+     *
+     * @param pwms
+     * @param rpms the measured speed at each pwm
+     * @param length the number of points
+     * @param rpmStep the rpm between table entries
+     * @return
+     * @throws IllegalArgumentException if fewer than 2 points have the motor running
+     */
+    public static CalibrationTable fit(int[] pwms, int[] rpms, int length, int rpmStep) {
+        // sort the points by pwm
+        long[] points = new long[length];
+        for(int i = 0; i < length; i++) {
+            points[i] = ((long)pwms[i] << 32) | (rpms[i] & 0xffffffffL);
+        }
+
+        Arrays.sort(points);
+
+        // keep the points where the motor is running and the speed rises
+        int[] modelPWMs = new int[length];
+        int[] modelRPMs = new int[length];
+        int count = 0;
+
+        for(long point: points) {
+            int pwm = (int)(point >> 32);
+            int rpm = (int)point;
+
+            if(rpm <= 0) continue;
+            if(count > 0 && (pwm <= modelPWMs[count - 1] || rpm <= modelRPMs[count - 1])) continue;
+
+            modelPWMs[count] = pwm;
+            modelRPMs[count] = rpm;
+            count++;
+        }
+
+        if(count < 2) {
+            throw new IllegalArgumentException("Motor profile needs at least 2 points with the motor running");
+        }
+
+        return new CalibrationTable(Arrays.copyOf(modelPWMs, count), Arrays.copyOf(modelRPMs, count),
+                Math.max(1, rpmStep));
+    }
+
+    /**
+     * Fit a calibration to a motor profile
+     *
+     * @param profile
+     * @return
+     */
+    public static CalibrationTable fit(MotorProfiler.Profile profile) {
+        int[] pwms = new int[profile.getLength()];
+        int[] rpms = new int[profile.getLength()];
+
+        for(int i = 0; i < pwms.length; i++) {
+            pwms[i] = profile.getPWM(i);
+            rpms[i] = profile.getRPM(i);
+        }
+
+        return fit(pwms, rpms, pwms.length, DEFAULT_RPM_STEP);
+    }
+
+    /**
+     * Fit a calibration to the x (pwm) and y (rpm) arrays of a motor profile map
+     *
+     * @param motorProfileMap
+     * @return
+     */
+    public static CalibrationTable fit(HashMap<String, Double[]> motorProfileMap) {
+        Double[] x = motorProfileMap.get("x");
+        Double[] y = motorProfileMap.get("y");
+        int[] pwms = new int[x.length];
+        int[] rpms = new int[x.length];
+
+        for(int i = 0; i < x.length; i++) {
+            pwms[i] = x[i].intValue();
+            rpms[i] = y[i].intValue();
+        }
+
+        return fit(pwms, rpms, pwms.length, DEFAULT_RPM_STEP);
+    }
+
+    /**
+     * Get the pwm for a speed
+     *
+     * @param rpm
+     * @return the pwm, or 0 to stop the motor if the speed is 0 or less
+     */
+    public int toPWM(int rpm) {
+        if(rpm <= 0) return 0;
+
+        int k = (rpm + rpmStep/2)/rpmStep;
+        return table[Math.min(k, table.length - 1)];
+    }
+
+    /**
+     * Get the speed the model gives for a pwm
+     *
+     * @param pwm
+     * @return the rpm, or 0 below the lowest profiled pwm
+     */
+    public int toRPM(int pwm) {
+        if(pwm < pwms[0]) return 0;
+
+        int last = pwms.length - 1;
+        if(pwm >= pwms[last]) return rpms[last];
+
+        int idx = Arrays.binarySearch(pwms, pwm);
+        if(idx >= 0) return rpms[idx];
+
+        int j = -idx - 2;
+        double fraction = (pwm - pwms[j])/(double)(pwms[j + 1] - pwms[j]);
+        return (int)Math.round(rpms[j] + fraction*(rpms[j + 1] - rpms[j]));
+    }
+
+    /**
+     * Get the slowest speed in the model, below which the motor isn't known to run
+     *
+     * @return
+     */
+    public int getMinRPM() {
+        return rpms[0];
+    }
+
+    public int getMaxRPM() {
+        return rpms[rpms.length - 1];
+    }
+
+    /**
+     * Get the number of points in the model
+     *
+     * @return
+     */
+    public int getPointCount() {
+        return pwms.length;
+    }
+
+    /**
+     * Save the model points to a file. The table is built again when it's loaded
+     *
+     * @param filename
+     */
+    public void save(String filename) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < pwms.length; i++) {
+            if(i > 0) sb.append(",");
+            sb.append(pwms[i]).append(":").append(rpms[i]);
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("points", sb.toString());
+        properties.setProperty("rpm.step", "" + rpmStep);
+
+        try (FileWriter output = new FileWriter(filename)) {
+            properties.store(output, "SCKTalk Motor Calibration (pwm:rpm)");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Load a calibration saved to a file
+     *
+     * @param filename
+     * @return the calibration or null if the file doesn't exist or is invalid
+     */
+    public static CalibrationTable load(String filename) {
+        Properties properties = new Properties();
+
+        try (FileReader fileReader = new FileReader(filename)) {
+            properties.load(fileReader);
+
+            String[] points = properties.getProperty("points", "").split(",");
+            int[] pwms = new int[points.length];
+            int[] rpms = new int[points.length];
+
+            for(int i = 0; i < points.length; i++) {
+                String[] point = points[i].split(":");
+                pwms[i] = Integer.parseInt(point[0].trim());
+                rpms[i] = Integer.parseInt(point[1].trim());
+            }
+
+            int rpmStep = Integer.parseInt(properties.getProperty("rpm.step", "" + DEFAULT_RPM_STEP));
+            return fit(pwms, rpms, pwms.length, rpmStep);
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.out.println("Invalid motor calibration: " + filename);
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Calibration: " + pwms.length + " points, " + getMinRPM() + " - " + getMaxRPM() + " rpm";
+    }
+}
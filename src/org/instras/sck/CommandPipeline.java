@@ -0,0 +1,665 @@
+package org.instras.sck;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Command channel which allows several commands to be in flight on the serial link at once. Each command
+ * gets a future which is completed when its response line arrives. Responses are matched to the commands
+ * in FIFO order, using the echoed command name in MiM replies (i.e. RPM,1234:TT for GetRPM) to skip
+ * over commands whose response was lost.
+ *
+ * Integer commands such as GetRPM can also be sent with queryInt, which reuses a command buffer and pending
+ * slot kept for each calling thread, so high rate polling doesn't create any garbage and the sampler, the ramp
+ * and the controller can each have a query in flight.
+ *
+ * The round trip time of every command is recorded in the pipeline's CommandStats, along with the timeouts,
+ * lost responses and bytes sent and received.
+ */
+public class CommandPipeline implements LineFrameCodec.FrameListener {
+    private final SCKTransport transport;
+
+    private final LineFrameCodec codec;
+
+    private final Object writeLock = new Object();
+
+    private final CommandStats stats = new CommandStats();
+
+    private volatile RunRecorder recorder; // records the commands and responses if set
+
+    // the commands waiting for a response, kept in a ring so it can be searched without creating an iterator
+    private PendingCommand[] pending = new PendingCommand[16];
+
+    private int pendingHead = 0;
+
+    private int pendingSize = 0;
+
+    private long maxPendingAge = 5000; // drop commands which never got a response after this many ms
+
+    // mode byte and probe retry schedule used by handshake, in milliseconds
+    private static final long HANDSHAKE_RETRY_MS = 100;
+
+    private static final long HANDSHAKE_MAX_RETRY_MS = 250;
+
+    private static final long HANDSHAKE_SETTLE_MS = 20;
+
+    // reused by queryInt and sendInt, one of each per thread
+    private final ThreadLocal<PendingCommand> querySlot = ThreadLocal.withInitial(PendingCommand::new);
+
+    private final ThreadLocal<byte[]> queryBuffer = ThreadLocal.withInitial(() -> new byte[64]);
+
+    /**
+     * Create a pipeline which sends commands over the given transport. The pipeline becomes the transport's
+     * listener, so it must be created before the transport is opened
+     *
+     * @param transport
+     * @param terminator the line terminator the device expects after each command
+     */
+    public CommandPipeline(SCKTransport transport, String terminator) {
+        this.transport = transport;
+        this.codec = new LineFrameCodec(terminator, this);
+        this.codec.setStats(stats);
+
+        transport.setListener(codec);
+    }
+
+    /**
+     * Get the transport the commands are sent over
+     *
+     * @return
+     */
+    public SCKTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Get the round trip statistics of the commands sent through this pipeline
+     *
+     * @return
+     */
+    public CommandStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Set the recorder which every command and response is written to
+     *
+     * @param recorder the recorder, or null to stop recording
+     */
+    public void setRecorder(RunRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Set how long a command waits for a response before it's dropped from the pipeline
+     *
+     * @param maxPendingAge the time in milliseconds
+     */
+    public void setMaxPendingAge(long maxPendingAge) {
+        this.maxPendingAge = maxPendingAge;
+    }
+
+    /**
+     * Write the command to the device without waiting for the response
+     *
+     * @param command the command without the line terminator
+     * @param expectResponse false if the device doesn't reply to this command
+     * @return the future response, which is completed with an empty string if no response is expected
+     * @throws IOException
+     */
+    public Future<String> submit(String command, boolean expectResponse) throws IOException {
+        PendingCommand pendingCommand = new PendingCommand();
+        pendingCommand.setVerb(command);
+
+        byte[] data = codec.encode(command);
+        write(pendingCommand, data, data.length, expectResponse);
+
+        if(!expectResponse) {
+            pendingCommand.complete(data, 0, 0);
+        }
+
+        return pendingCommand;
+    }
+
+    /**
+     * Send a mode byte such as x, which the bridge answers every time it toggles the mode, and wait for the
+     * bridge's mode banner. Boards which reset when the port is opened lose whatever is sent while they boot, so
+     * the mode byte is resent on a doubling schedule until a response arrives. The bridge may see more than one of
+     * the tries, and x toggles TIC mode, so it's only taken
+     * to be in the mode once the responses to the tries have settled and the last one heard is the banner,
+     * otherwise the mode byte is sent again. Waiting for the late responses also keeps them from being taken as
+     * the responses to the next commands.
+     *
+     * @param modeByte the mode byte, i.e. x
+     * @param banner the start of the expected banner, i.e. TIC SCK-300S MODE
+     * @param timeoutMS the total time to wait, which needs to cover the boot time of the board
+     * @return the banner or null if it didn't arrive before the timeout
+     * @throws IOException
+     */
+    public String handshake(String modeByte, String banner, long timeoutMS) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeoutMS*1000000L;
+        long retryPeriod = HANDSHAKE_RETRY_MS*1000000L;
+        long nextSend = System.nanoTime();
+        long settleTime = 0; // when to stop waiting for responses to the other tries
+        String lastResponse = null;
+        ArrayList<PendingCommand> tries = new ArrayList<PendingCommand>();
+
+        try {
+            while(true) {
+                long now = System.nanoTime();
+
+                // the responses complete the tries in the order they were sent, so the last one done is the newest
+                for(int i = 0; i < tries.size(); i++) {
+                    PendingCommand sent = tries.get(i);
+                    if(!sent.isDone()) continue;
+
+                    tries.remove(i--);
+
+                    if(sent.dataLength > 0) {
+                        lastResponse = new String(sent.data, 0, sent.dataLength);
+
+                        // the responses to the other tries should arrive within about one more round trip
+                        long roundTrip = Math.min(now - sent.sentTime, retryPeriod);
+                        settleTime = now + Math.max(HANDSHAKE_SETTLE_MS*1000000L, roundTrip);
+                    }
+                }
+
+                if(lastResponse != null && (tries.isEmpty() || now >= settleTime)) {
+                    if(lastResponse.startsWith(banner)) {
+                        return lastResponse;
+                    }
+
+                    // the bridge is listening but not in the mode, i.e. a retry toggled it out again
+                    lastResponse = null;
+                    nextSend = now;
+                }
+
+                if(now >= deadline) {
+                    return null;
+                }
+
+                if(lastResponse == null && now >= nextSend) {
+                    tries.add((PendingCommand)submit(modeByte, true));
+                    nextSend = now + retryPeriod;
+                    retryPeriod = Math.min(retryPeriod*2, HANDSHAKE_MAX_RETRY_MS*1000000L);
+                }
+
+                long wakeUp = Math.min(deadline, (lastResponse == null) ? nextSend : settleTime);
+                long waitMS = Math.max(1, (wakeUp - now)/1000000L);
+
+                if(tries.isEmpty()) {
+                    Thread.sleep(waitMS);
+                } else {
+                    tries.get(0).await(waitMS);
+                }
+            }
+        } finally {
+            // drop the unanswered tries so they don't take the responses to the next commands
+            for(PendingCommand sent: tries) {
+                sent.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Send a mode byte such as y, which the bridge answers with its banner when it turns the mode on but silently
+     * turns the mode off again if it was already on, and wait for the banner. Resending the mode byte blindly could
+     * leave the bridge out of the mode, so it's sent once and the link is polled with the probe command, which the
+     * bridge passes through to the board, until something answers. The bridge handles the bytes in order, so if a
+     * probe is answered before any banner arrives the mode byte was either lost while the board booted or it
+     * turned off a mode left on by an earlier connection, and only then is it sent one more time. The probes are
+     * left waiting so they take the late answers, which can't be told apart from the answer to a new probe.
+     *
+     * @param modeByte the mode byte, i.e. y
+     * @param banner the start of the expected banner, i.e. MIM SCK-300[P] MODE
+     * @param probe a command the board answers in any mode, i.e. GetVersion
+     * @param timeoutMS the total time to wait, which needs to cover the boot time of the board
+     * @return the banner or null if it didn't arrive before the timeout
+     * @throws IOException
+     */
+    public String handshake(String modeByte, String banner, String probe, long timeoutMS) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeoutMS*1000000L;
+        long retryPeriod = HANDSHAKE_RETRY_MS*1000000L;
+        long nextProbe = System.nanoTime() + retryPeriod;
+        long settleTime = 0; // when to stop waiting for the answers to the probes
+        String bannerResponse = null;
+        boolean resent = false; // the mode byte was sent again after a probe was answered
+        ArrayList<PendingCommand> tries = new ArrayList<PendingCommand>();
+
+        try {
+            tries.add((PendingCommand)submit(modeByte, true));
+
+            while(true) {
+                long now = System.nanoTime();
+                boolean answered = false;
+
+                // responses can complete the wrong try if some were lost, so go by what they say
+                for(int i = 0; i < tries.size(); i++) {
+                    PendingCommand sent = tries.get(i);
+                    if(!sent.isDone()) continue;
+
+                    tries.remove(i--);
+
+                    if(sent.dataLength > 0) {
+                        String response = new String(sent.data, 0, sent.dataLength);
+
+                        if(response.startsWith(banner)) {
+                            bannerResponse = response;
+                        } else {
+                            answered = true;
+                        }
+
+                        long roundTrip = Math.min(now - sent.sentTime, retryPeriod);
+                        settleTime = now + Math.max(HANDSHAKE_SETTLE_MS*1000000L, roundTrip);
+                    }
+                }
+
+                if(bannerResponse != null) {
+                    if(tries.isEmpty() || now >= settleTime) {
+                        return bannerResponse;
+                    }
+                } else if(answered && !resent) {
+                    // the board is listening but the bridge isn't in the mode
+                    tries.add((PendingCommand)submit(modeByte, true));
+                    resent = true;
+                }
+
+                if(now >= deadline) {
+                    return null;
+                }
+
+                boolean probing = bannerResponse == null && !resent;
+
+                if(probing && now >= nextProbe) {
+                    tries.add((PendingCommand)submit(probe, true));
+                    nextProbe = now + retryPeriod;
+                    retryPeriod = Math.min(retryPeriod*2, HANDSHAKE_MAX_RETRY_MS*1000000L);
+                }
+
+                long wakeUp = Math.min(deadline, probing ? nextProbe : (bannerResponse != null) ? settleTime : deadline);
+                long waitMS = Math.max(1, (wakeUp - now)/1000000L);
+
+                if(tries.isEmpty()) {
+                    Thread.sleep(waitMS);
+                } else {
+                    tries.get(0).await(waitMS);
+                }
+            }
+        } finally {
+            // drop the unanswered tries so they don't take the responses to the next commands
+            for(PendingCommand sent: tries) {
+                sent.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Send an integer command such as GetRPM or SetRPM,1200 and parse the integer value of the response,
+     * without creating any garbage once the calling thread has sent its first one. Each thread waits on its own
+     * slot, so queries from other threads and other commands can be in flight at the same time.
+     *
+     * @param verb the ascii command name
+     * @param value the argument, or LineFrameCodec.NO_VALUE for commands without one
+     * @param timeoutMS the time to wait for the response
+     * @return the value of the response or LineFrameCodec.NO_VALUE on a timeout or invalid response
+     * @throws IOException
+     */
+    public int queryInt(byte[] verb, int value, long timeoutMS) throws IOException, InterruptedException {
+        PendingCommand slot = querySlot.get();
+        byte[] buffer = queryBuffer.get();
+        int length = codec.encode(verb, value, buffer);
+
+        slot.reset(verb);
+        write(slot, buffer, length, true);
+
+        if(!slot.await(timeoutMS)) {
+            remove(slot);
+            slot.stats.recordTimeout();
+            return LineFrameCodec.NO_VALUE;
+        }
+
+        int result = LineFrameCodec.parseValue(slot.data, 0, slot.dataLength);
+        if(result == LineFrameCodec.NO_VALUE && slot.dataLength > 0) {
+            slot.stats.recordParseFailure();
+        }
+
+        return result;
+    }
+
+    /**
+     * Send an integer command to which the device doesn't reply, without creating any garbage
+     *
+     * @param verb the ascii command name
+     * @param value the argument, or LineFrameCodec.NO_VALUE for commands without one
+     * @throws IOException
+     */
+    public void sendInt(byte[] verb, int value) throws IOException {
+        byte[] buffer = queryBuffer.get();
+        int length = codec.encode(verb, value, buffer);
+        write(null, buffer, length, false);
+        stats.forVerb(verb, verb.length).recordSent();
+    }
+
+    /**
+     * Write the command bytes, adding the command to the queue first if a response is expected
+     */
+    private void write(PendingCommand pendingCommand, byte[] data, int length, boolean expectResponse) throws IOException {
+        // hold the write lock so the order of the queue matches the order on the wire
+        synchronized (writeLock) {
+            if(expectResponse) {
+                synchronized (this) {
+                    purgeExpired(pendingCommand.sentTime);
+                    addPending(pendingCommand);
+                }
+            }
+
+            try {
+                transport.write(data, 0, length);
+            } catch (IOException e) {
+                if(expectResponse) remove(pendingCommand);
+                throw e;
+            }
+
+            stats.addBytesOut(length);
+
+            RunRecorder runRecorder = recorder;
+            if(runRecorder != null) runRecorder.recordCommand(data, 0, length);
+            if(pendingCommand != null) pendingCommand.stats.recordSent();
+        }
+    }
+
+    /**
+     * Get the oldest command still waiting for a response
+     *
+     * @return the future response or null if no command is pending
+     */
+    public synchronized Future<String> oldestPending() {
+        return (pendingSize > 0) ? pending[pendingHead] : null;
+    }
+
+    /**
+     * Return the number of commands waiting for a response
+     *
+     * @return
+     */
+    public synchronized int pendingCount() {
+        return pendingSize;
+    }
+
+    /**
+     * Called by the codec when a response line arrives
+     */
+    @Override
+    public void frameReceived(byte[] buffer, int offset, int length) {
+        PendingCommand matched = null;
+        long now = System.nanoTime();
+
+        RunRecorder runRecorder = recorder;
+        if(runRecorder != null) runRecorder.recordResponse(buffer, offset, length);
+
+        synchronized (this) {
+            purgeExpired(now);
+            if(pendingSize == 0) {
+                //System.out.println("Unsolicited response: " + new String(buffer, offset, length));
+                return;
+            }
+
+            // see if the response names a command further down the queue, which means
+            // the responses for the commands in front of it were lost
+            int tagLength = getTagLength(buffer, offset, length);
+            if(tagLength > 0) {
+                for(int i = 0; i < pendingSize; i++) {
+                    PendingCommand pendingCommand = pending[(pendingHead + i) % pending.length];
+
+                    if(pendingCommand.verbContains(buffer, offset, tagLength)) {
+                        matched = pendingCommand;
+                        break;
+                    }
+                }
+            }
+
+            if(matched == null) {
+                matched = pending[pendingHead];
+            }
+
+            PendingCommand head;
+            while((head = pollPending()) != matched) {
+                head.stats.recordLost();
+                head.complete(buffer, offset, 0);
+            }
+        }
+
+        matched.stats.recordLatency(now - matched.sentTime);
+
+        matched.complete(buffer, offset, length);
+    }
+
+    /**
+     * Add a command to the end of the ring, growing it if needed
+     *
+     * @param pendingCommand
+     */
+    private void addPending(PendingCommand pendingCommand) {
+        if(pendingSize == pending.length) {
+            PendingCommand[] larger = new PendingCommand[pending.length*2];
+            for(int i = 0; i < pendingSize; i++) {
+                larger[i] = pending[(pendingHead + i) % pending.length];
+            }
+
+            pending = larger;
+            pendingHead = 0;
+        }
+
+        pending[(pendingHead + pendingSize) % pending.length] = pendingCommand;
+        pendingSize++;
+    }
+
+    /**
+     * Take the oldest command from the ring
+     *
+     * @return
+     */
+    private PendingCommand pollPending() {
+        PendingCommand head = pending[pendingHead];
+        pending[pendingHead] = null;
+        pendingHead = (pendingHead + 1) % pending.length;
+        pendingSize--;
+        return head;
+    }
+
+    /**
+     * Remove a command from the queue, i.e. after the caller gave up waiting on it
+     *
+     * @param pendingCommand
+     */
+    private synchronized void remove(PendingCommand pendingCommand) {
+        for(int i = 0; i < pendingSize; i++) {
+            if(pending[(pendingHead + i) % pending.length] == pendingCommand) {
+                // shift the commands after it down by one
+                for(int j = i; j < pendingSize - 1; j++) {
+                    pending[(pendingHead + j) % pending.length] = pending[(pendingHead + j + 1) % pending.length];
+                }
+
+                pending[(pendingHead + pendingSize - 1) % pending.length] = null;
+                pendingSize--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop commands which have been waiting longer than the max pending age
+     *
+     * @param now the current nano time
+     */
+    private void purgeExpired(long now) {
+        while(pendingSize > 0 && now - pending[pendingHead].sentTime > maxPendingAge*1000000L) {
+            PendingCommand expired = pollPending();
+            expired.stats.recordTimeout();
+            expired.complete(null, 0, 0);
+        }
+    }
+
+    /**
+     * Get the length of the command name a MiM response echoes back, i.e. RPM for RPM,1234:TT
+     *
+     * @return the length of the tag or 0 if the response doesn't have one
+     */
+    private static int getTagLength(byte[] buffer, int offset, int length) {
+        for(int i = 0; i < length; i++) {
+            byte b = buffer[offset + i];
+
+            if(b == ',') {
+                return i;
+            } else if(b == ' ') {
+                return 0;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Convert an ascii letter to upper case
+     */
+    private static byte toUpper(byte b) {
+        return (b >= 'a' && b <= 'z') ? (byte)(b - 32) : b;
+    }
+
+    /**
+     * A command waiting for its response
+     */
+    private class PendingCommand implements Future<String> {
+        private final byte[] verb = new byte[32]; // upper case command name
+
+        private int verbLength;
+
+        private long sentTime;
+
+        private CommandStats.VerbStats stats;
+
+        private final byte[] data = new byte[LineFrameCodec.MAX_LINE_LENGTH];
+
+        private int dataLength;
+
+        private boolean done;
+
+        private boolean cancelled;
+
+        private void setVerb(String command) {
+            reset(command.getBytes());
+        }
+
+        private synchronized void reset(byte[] command) {
+            verbLength = 0;
+            for(int i = 0; i < command.length && command[i] != ',' && verbLength < verb.length; i++) {
+                verb[verbLength++] = toUpper(command[i]);
+            }
+
+            stats = CommandPipeline.this.stats.forVerb(command, command.length);
+
+            sentTime = System.nanoTime();
+            dataLength = 0;
+            done = false;
+            cancelled = false;
+        }
+
+        /**
+         * Check if the command name contains the tag, ignoring case
+         */
+        private boolean verbContains(byte[] buffer, int offset, int tagLength) {
+            for(int start = 0; start + tagLength <= verbLength; start++) {
+                int i = 0;
+                while(i < tagLength && verb[start + i] == toUpper(buffer[offset + i])) {
+                    i++;
+                }
+
+                if(i == tagLength) return true;
+            }
+
+            return false;
+        }
+
+        private synchronized void complete(byte[] buffer, int offset, int length) {
+            if(done) return;
+
+            dataLength = Math.min(length, data.length);
+            if(dataLength > 0) {
+                System.arraycopy(buffer, offset, data, 0, dataLength);
+            }
+
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait for the response
+         *
+         * @return false if no response arrived before the timeout
+         */
+        private synchronized boolean await(long timeoutMS) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutMS*1000000L;
+
+            while(!done) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    return false;
+                }
+
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if(done) return false;
+
+                cancelled = true;
+                done = true;
+                notifyAll();
+            }
+
+            remove(this);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public synchronized String get() throws InterruptedException, ExecutionException {
+            while(!done) {
+                wait();
+            }
+
+            if(cancelled) throw new CancellationException();
+            return new String(data, 0, dataLength);
+        }
+
+        @Override
+        public synchronized String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if(!await(unit.toMillis(timeout))) {
+                stats.recordTimeout();
+                throw new TimeoutException("No response to " + new String(verb, 0, verbLength));
+            }
+
+            if(cancelled) throw new CancellationException();
+            return new String(data, 0, dataLength);
+        }
+    }
+}
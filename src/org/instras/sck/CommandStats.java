@@ -0,0 +1,419 @@
+package org.instras.sck;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Round trip statistics for the commands sent through a CommandPipeline. Each command name gets a latency
+ * histogram plus counts of timeouts, lost responses and responses which couldn't be parsed, and the bytes
+ * written to and read from the transport are counted as well. Recording doesn't create any garbage, so it
+ * can stay on while polling at a high rate.
+ *
+ * Latencies go into log-linear buckets, 16 per power of two microseconds, so the percentiles are within
+ * about 6% of the real value and the max is exact.
+ */
+public class CommandStats {
+    private static final int SUB_BUCKETS = 16;
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int BUCKET_COUNT = 40*SUB_BUCKETS; // covers up to 2^40 us, far beyond any timeout
+
+    private volatile VerbStats[] verbs = new VerbStats[0]; // copied on write so lookups don't need a lock
+
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    private final AtomicLong bytesIn = new AtomicLong();
+
+    private long startTime = System.currentTimeMillis();
+
+    private Thread dumpThread;
+
+    /**
+     * Get the stats for a command, creating them the first time the command is seen
+     *
+     * @param command the command or just its name, i.e. SetRPM,1200 or SetRPM
+     * @return
+     */
+    public VerbStats forVerb(String command) {
+        byte[] bytes = command.getBytes();
+        return forVerb(bytes, bytes.length);
+    }
+
+    /**
+     * Get the stats for a command without creating any garbage once the command has been seen before.
+     * Command names are compared ignoring case, and anything after a ',' is ignored
+     *
+     * @param command the ascii command
+     * @param length the number of bytes to look at
+     * @return
+     */
+    public VerbStats forVerb(byte[] command, int length) {
+        int nameLength = 0;
+        while(nameLength < length && command[nameLength] != ',') {
+            nameLength++;
+        }
+
+        VerbStats stats = findVerb(verbs, command, nameLength);
+        if(stats != null) return stats;
+
+        synchronized (this) {
+            // check again in case another thread just added it
+            stats = findVerb(verbs, command, nameLength);
+            if(stats == null) {
+                stats = new VerbStats(new String(command, 0, nameLength));
+
+                VerbStats[] larger = new VerbStats[verbs.length + 1];
+                System.arraycopy(verbs, 0, larger, 0, verbs.length);
+                larger[verbs.length] = stats;
+                verbs = larger;
+            }
+
+            return stats;
+        }
+    }
+
+    /**
+     * Search for the stats of a command name
+     */
+    private static VerbStats findVerb(VerbStats[] verbs, byte[] command, int nameLength) {
+        for(VerbStats stats: verbs) {
+            if(stats.nameMatches(command, nameLength)) return stats;
+        }
+
+        return null;
+    }
+
+    /**
+     * Count bytes written to the transport
+     *
+     * @param count
+     */
+    public void addBytesOut(int count) {
+        bytesOut.addAndGet(count);
+    }
+
+    /**
+     * Count bytes read from the transport
+     *
+     * @param count
+     */
+    public void addBytesIn(int count) {
+        bytesIn.addAndGet(count);
+    }
+
+    /**
+     * Clear all the counters and histograms
+     */
+    public synchronized void reset() {
+        for(VerbStats stats: verbs) {
+            stats.reset();
+        }
+
+        bytesOut.set(0);
+        bytesIn.set(0);
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Take a consistent copy of the stats of each command
+     *
+     * @return
+     */
+    public synchronized Snapshot snapshot() {
+        VerbStats[] current = verbs;
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.seconds = (System.currentTimeMillis() - startTime)/1000.0;
+        snapshot.bytesOut = bytesOut.get();
+        snapshot.bytesIn = bytesIn.get();
+        snapshot.verbs = new VerbSnapshot[current.length];
+
+        for(int i = 0; i < current.length; i++) {
+            snapshot.verbs[i] = current[i].snapshot();
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Print a snapshot of the stats at a fixed period until stopDump is called
+     *
+     * @param periodMS the time between dumps in milliseconds
+     * @param out where to print the snapshot, i.e. System.out::println or the console of the talk class
+     */
+    public synchronized void startDump(final long periodMS, final Consumer<String> out) {
+        stopDump();
+
+        dumpThread = new Thread("Command Stats Dump") {
+            public void run() {
+                try {
+                    while(!isInterrupted()) {
+                        Thread.sleep(periodMS);
+                        out.accept(snapshot().toString());
+                    }
+                } catch (InterruptedException e) { }
+            }
+        };
+
+        dumpThread.setDaemon(true);
+        dumpThread.start();
+    }
+
+    /**
+     * Stop the periodic dump
+     */
+    public synchronized void stopDump() {
+        if(dumpThread != null) {
+            dumpThread.interrupt();
+            dumpThread = null;
+        }
+    }
+
+    /**
+     * Get the histogram bucket for a latency
+     *
+     * @param micros the latency in microseconds
+     * @return
+     */
+    private static int bucketIndex(long micros) {
+        if(micros < SUB_BUCKETS) return (int)Math.max(micros, 0);
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int)(micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        int index = (exponent - SUB_BUCKET_BITS + 1)*SUB_BUCKETS + subBucket;
+
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Get the largest latency which falls into a histogram bucket
+     *
+     * @param index
+     * @return the latency in microseconds
+     */
+    private static long bucketUpperBound(int index) {
+        if(index < SUB_BUCKETS) return index;
+
+        int exponent = index/SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+        return (1L << exponent) + (subBucket + 1)*width - 1;
+    }
+
+    /**
+     * The counters and latency histogram of one command
+     */
+    public static class VerbStats {
+        private final String name;
+
+        private final byte[] upperName;
+
+        private final long[] buckets = new long[BUCKET_COUNT];
+
+        private long sent;
+
+        private long count;
+
+        private long totalMicros;
+
+        private long maxMicros;
+
+        private long timeouts;
+
+        private long lost;
+
+        private long parseFailures;
+
+        private VerbStats(String name) {
+            this.name = name;
+            this.upperName = name.toUpperCase().getBytes();
+        }
+
+        /**
+         * Check if the command name matches, ignoring case
+         */
+        private boolean nameMatches(byte[] command, int nameLength) {
+            if(nameLength != upperName.length) return false;
+
+            for(int i = 0; i < nameLength; i++) {
+                byte b = command[i];
+                if(b >= 'a' && b <= 'z') b -= 32;
+
+                if(b != upperName[i]) return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Get the command name
+         *
+         * @return
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Count a command written to the transport
+         */
+        public synchronized void recordSent() {
+            sent++;
+        }
+
+        /**
+         * Record the time from writing the command to reading its response
+         *
+         * @param nanos
+         */
+        public synchronized void recordLatency(long nanos) {
+            long micros = nanos/1000;
+
+            buckets[bucketIndex(micros)]++;
+            count++;
+            totalMicros += micros;
+            if(micros > maxMicros) maxMicros = micros;
+        }
+
+        /**
+         * Count a response which didn't arrive in time
+         */
+        public synchronized void recordTimeout() {
+            timeouts++;
+        }
+
+        /**
+         * Count a response which was skipped because the response of a later command arrived first
+         */
+        public synchronized void recordLost() {
+            lost++;
+        }
+
+        /**
+         * Count a response which didn't hold the expected value
+         */
+        public synchronized void recordParseFailure() {
+            parseFailures++;
+        }
+
+        private synchronized void reset() {
+            Arrays.fill(buckets, 0);
+            sent = 0;
+            count = 0;
+            totalMicros = 0;
+            maxMicros = 0;
+            timeouts = 0;
+            lost = 0;
+            parseFailures = 0;
+        }
+
+        private synchronized VerbSnapshot snapshot() {
+            VerbSnapshot snapshot = new VerbSnapshot();
+            snapshot.name = name;
+            snapshot.sent = sent;
+            snapshot.count = count;
+            snapshot.timeouts = timeouts;
+            snapshot.lost = lost;
+            snapshot.parseFailures = parseFailures;
+            snapshot.meanMS = (count > 0) ? totalMicros/(count*1000.0) : 0;
+            snapshot.p50MS = percentile(0.50)/1000.0;
+            snapshot.p99MS = percentile(0.99)/1000.0;
+            snapshot.maxMS = maxMicros/1000.0;
+
+            return snapshot;
+        }
+
+        /**
+         * Get a latency percentile from the histogram
+         *
+         * @param fraction i.e. 0.99 for the 99th percentile
+         * @return the latency in microseconds
+         */
+        private long percentile(double fraction) {
+            if(count == 0) return 0;
+
+            long rank = (long)Math.ceil(fraction*count);
+            long seen = 0;
+
+            for(int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if(seen >= rank) {
+                    return Math.min(bucketUpperBound(i), maxMicros);
+                }
+            }
+
+            return maxMicros;
+        }
+    }
+
+    /**
+     * A copy of the stats of one command
+     */
+    public static class VerbSnapshot {
+        public String name;
+
+        public long sent; // number of commands written
+
+        public long count; // number of responses received
+
+        public long timeouts;
+
+        public long lost;
+
+        public long parseFailures;
+
+        public double meanMS;
+
+        public double p50MS;
+
+        public double p99MS;
+
+        public double maxMS;
+    }
+
+    /**
+     * A copy of the stats of all the commands
+     */
+    public static class Snapshot {
+        public double seconds; // time since the stats were created or reset
+
+        public long bytesOut;
+
+        public long bytesIn;
+
+        public VerbSnapshot[] verbs;
+
+        /**
+         * Get the stats of a command
+         *
+         * @param name
+         * @return the stats or null if the command hasn't been sent
+         */
+        public VerbSnapshot get(String name) {
+            for(VerbSnapshot verb: verbs) {
+                if(verb.name.equalsIgnoreCase(name)) return verb;
+            }
+
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Command stats over %.1f s, %d bytes out, %d bytes in%n", seconds, bytesOut, bytesIn));
+            sb.append(String.format("%-14s %8s %8s %9s %9s %9s %9s %8s %6s %6s%n",
+                    "Command", "Sent", "Replies", "Mean ms", "p50 ms", "p99 ms", "Max ms", "Timeout", "Lost", "Parse"));
+
+            for(VerbSnapshot verb: verbs) {
+                sb.append(String.format("%-14s %8d %8d %9.2f %9.2f %9.2f %9.2f %8d %6d %6d%n",
+                        verb.name, verb.sent, verb.count, verb.meanMS, verb.p50MS, verb.p99MS, verb.maxMS,
+                        verb.timeouts, verb.lost, verb.parseFailures));
+            }
+
+            return sb.toString();
+        }
+    }
+}
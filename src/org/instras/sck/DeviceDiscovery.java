@@ -0,0 +1,298 @@
+package org.instras.sck;
+
+import gnu.io.NRSerialPort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Finds the SCK units attached to the serial ports. Every port is probed at the same time on its own thread,
+ * so the whole scan takes about as long as the slowest probe. A probe first sends GetVersion, which a MiM board
+ * answers with its MIM version string. If there's no answer it puts the bridge into TIC mode with x, sends
+ * GetVersion,0 to look for TIC_SCK, and then takes the bridge back out of TIC mode. Finally it tries the ST-V3
+ * at 9600 baud, which answers GET RPM with a number.
+ *
+ * Boards which reset when the port is opened don't answer straight away, so GetVersion is resent every
+ * 200 ms until the first response or the boot timeout.
+ */
+public class DeviceDiscovery {
+    public enum DeviceType {
+        MIM,
+        TIC,
+        STV3
+    }
+
+    /**
+     * A unit found on a port
+     */
+    public static class DiscoveredDevice {
+        public final String port;
+
+        public final DeviceType type;
+
+        public final String version;
+
+        public final long probeMS; // how long the probe took
+
+        private DiscoveredDevice(String port, DeviceType type, String version, long probeMS) {
+            this.port = port;
+            this.type = type;
+            this.version = version;
+            this.probeMS = probeMS;
+        }
+
+        @Override
+        public String toString() {
+            return port + ": " + type + " (" + version + ") in " + probeMS + " ms";
+        }
+    }
+
+    private int bootTimeout = 2500; // max time in milliseconds to wait for the first response after opening
+
+    private int responseTimeout = 500; // max time in milliseconds to wait for the other responses
+
+    private int retryPeriod = 200; // time between GetVersion retries while the board boots
+
+    private boolean probeSTV3 = true;
+
+    /**
+     * Set the max time to wait for a board to answer after the port is opened
+     *
+     * @param bootTimeout in milliseconds
+     */
+    public void setBootTimeout(int bootTimeout) {
+        this.bootTimeout = bootTimeout;
+    }
+
+    /**
+     * Set the max time to wait for each of the other responses
+     *
+     * @param responseTimeout in milliseconds
+     */
+    public void setResponseTimeout(int responseTimeout) {
+        this.responseTimeout = responseTimeout;
+    }
+
+    /**
+     * Set whether to look for ST-V3 units, which takes an extra open of the port at 9600 baud
+     *
+     * @param probeSTV3
+     */
+    public void setProbeSTV3(boolean probeSTV3) {
+        this.probeSTV3 = probeSTV3;
+    }
+
+    /**
+     * Probe all the serial ports on this computer
+     *
+     * @return the units found, in port order
+     */
+    public List<DiscoveredDevice> discover() throws InterruptedException {
+        return discover(new ArrayList<String>(NRSerialPort.getAvailableSerialPorts()));
+    }
+
+    /**
+     * Probe the ports at the same time
+     *
+     * @param ports the serial ports or transport addresses
+     * @return the units found, in the order of the ports
+     */
+    public List<DiscoveredDevice> discover(Collection<String> ports) throws InterruptedException {
+        List<DiscoveredDevice> found = new ArrayList<DiscoveredDevice>();
+        if(ports.isEmpty()) return found;
+
+        ExecutorService executor = Executors.newFixedThreadPool(ports.size(), runnable -> {
+            Thread thread = new Thread(runnable, "SCK Probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<Future<DiscoveredDevice>> probes = new ArrayList<Future<DiscoveredDevice>>();
+        for(final String port: ports) {
+            probes.add(executor.submit(() -> probe(port)));
+        }
+
+        executor.shutdown();
+
+        // the probes bound their own time, this just stops a hung driver from blocking the scan
+        long maxProbeMS = bootTimeout + 6L*responseTimeout + 2000;
+        long deadline = System.nanoTime() + maxProbeMS*1000000L;
+
+        for(Future<DiscoveredDevice> probe: probes) {
+            try {
+                DiscoveredDevice device = probe.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if(device != null) found.add(device);
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (TimeoutException e) {
+                probe.cancel(true);
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Find out what's on a port
+     *
+     * @param port
+     * @return the unit found or null if nothing answered
+     */
+    public DiscoveredDevice probe(String port) {
+        long start = System.nanoTime();
+
+        String version = probeMiMBridge(port);
+        if(version == null && probeSTV3) {
+            version = probeSTV3(port);
+        }
+
+        if(version == null) return null;
+
+        long probeMS = (System.nanoTime() - start)/1000000L;
+
+        DeviceType type;
+        if(version.contains("MIM")) {
+            type = DeviceType.MIM;
+        } else if(version.contains("TIC_SCK")) {
+            type = DeviceType.TIC;
+        } else {
+            type = DeviceType.STV3;
+        }
+
+        return new DiscoveredDevice(port, type, version, probeMS);
+    }
+
+    /**
+     * Look for a MiM board, or a Tic board behind the bridge, at 19200 baud
+     *
+     * @param port
+     * @return the version string or null
+     */
+    private String probeMiMBridge(String port) {
+        SCKTransport transport = SCKTransport.create(port, 19200);
+        CommandPipeline pipeline = new CommandPipeline(transport, LineFrameCodec.MIM_TERMINATOR);
+
+        try {
+            transport.open();
+
+            // keep asking until the board has booted. A bridge left in TIC mode answers this itself
+            String response = waitForResponse(pipeline, "GetVersion", bootTimeout, true);
+            if(response != null && (response.contains("MIM") || response.contains("TIC_SCK"))) {
+                return response;
+            }
+
+            // something answered which isn't a unit, so don't toggle its mode
+            if(response != null) return null;
+
+            // the bridge answers x with its TIC mode banner. The mode byte toggles TIC mode, so it's only sent once
+            String banner = waitForResponse(pipeline, "x", responseTimeout, false);
+            if(banner != null && banner.contains("TIC")) {
+                String version = waitForResponse(pipeline, "GetVersion,0", responseTimeout, false);
+
+                // leave TIC mode so the unit is left as it was found
+                pipeline.submit("x", true).get(responseTimeout, TimeUnit.MILLISECONDS);
+
+                if(version != null && version.contains("TIC_SCK")) {
+                    return version;
+                }
+            }
+        } catch (Exception e) {
+            // nothing there, or the port is in use
+        } finally {
+            transport.close();
+        }
+
+        return null;
+    }
+
+    /**
+     * Look for an ST-V3 at 9600 baud
+     *
+     * @param port
+     * @return the response to GET RPM or null
+     */
+    private String probeSTV3(String port) {
+        SCKTransport transport = SCKTransport.create(port, 9600);
+        CommandPipeline pipeline = new CommandPipeline(transport, LineFrameCodec.STV3_TERMINATOR);
+
+        try {
+            transport.open();
+
+            String response = waitForResponse(pipeline, "GET RPM", bootTimeout, true);
+            if(response != null && response.trim().matches("-?\\d+")) {
+                return "ST-V3";
+            }
+        } catch (Exception e) {
+            // nothing there, or the port is in use
+        } finally {
+            transport.close();
+        }
+
+        return null;
+    }
+
+    /**
+     * Send a command and wait for the response
+     *
+     * @param pipeline
+     * @param command
+     * @param timeoutMS the total time to wait
+     * @param retry resend the command every retry period until a response arrives
+     * @return the first response or null on timeout
+     */
+    private String waitForResponse(CommandPipeline pipeline, String command, int timeoutMS, boolean retry) throws Exception {
+        long deadline = System.nanoTime() + timeoutMS*1000000L;
+        List<Future<String>> sent = new ArrayList<Future<String>>();
+
+        try {
+            while(true) {
+                sent.add(pipeline.submit(command, true));
+                long wait = (deadline - System.nanoTime())/1000000L;
+                if(retry) wait = Math.min(retryPeriod, wait);
+
+                // responses are matched in order, so the first answer completes the oldest try
+                try {
+                    String response = sent.get(0).get(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+                    if(!response.isEmpty()) return response;
+                    sent.remove(0);
+                } catch (TimeoutException e) { }
+
+                if(System.nanoTime() >= deadline) {
+                    return null;
+                }
+            }
+        } finally {
+            // drop the unanswered tries so they don't take the responses to the next command
+            for(Future<String> response: sent) {
+                response.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Print the units found on the serial ports, or the ports given on the command line
+     *
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        DeviceDiscovery discovery = new DeviceDiscovery();
+
+        long start = System.currentTimeMillis();
+        List<DiscoveredDevice> found = (args.length > 0) ? discovery.discover(Arrays.asList(args)) : discovery.discover();
+
+        for(DiscoveredDevice device: found) {
+            System.out.println(device);
+        }
+
+        System.out.println(found.size() + " units found in " + (System.currentTimeMillis() - start) + " ms");
+        System.exit(0);
+    }
+}
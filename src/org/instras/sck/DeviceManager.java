@@ -0,0 +1,226 @@
+package org.instras.sck;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs many SCK units from one program. Each unit gets its own SCKDevice session with its own connection,
+ * thread and rpm sampler, so the units are connected and run their step sequences at the same time, and a
+ * slow or dead port doesn't hold up the others.
+ */
+public class DeviceManager {
+    private final List<SCKDevice> devices = new ArrayList<SCKDevice>();
+
+    private int connectTimeout = 10000; // max time in milliseconds to wait for a unit to connect
+
+    /**
+     * Add a unit
+     *
+     * @param address the serial port or transport address
+     * @param model which board the unit uses
+     * @return the session for the unit
+     */
+    public synchronized SCKDevice addDevice(String address, SCKDevice.Model model) {
+        SCKDevice device = new SCKDevice(address, model);
+        devices.add(device);
+        return device;
+    }
+
+    /**
+     * Probe the ports at the same time and add the MiM and Tic units found
+     *
+     * @param ports the serial ports or transport addresses
+     * @return the units added
+     */
+    public List<SCKDevice> addDiscoveredDevices(List<String> ports) throws InterruptedException {
+        List<SCKDevice> added = new ArrayList<SCKDevice>();
+
+        for(DeviceDiscovery.DiscoveredDevice found: new DeviceDiscovery().discover(ports)) {
+            if(found.type == DeviceDiscovery.DeviceType.MIM) {
+                added.add(addDevice(found.port, SCKDevice.Model.MIM));
+            } else if(found.type == DeviceDiscovery.DeviceType.TIC) {
+                added.add(addDevice(found.port, SCKDevice.Model.TIC));
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * Get the units
+     *
+     * @return a copy of the list of units
+     */
+    public synchronized List<SCKDevice> getDevices() {
+        return new ArrayList<SCKDevice>(devices);
+    }
+
+    /**
+     * Set the max time to wait for a unit to connect
+     *
+     * @param connectTimeout in milliseconds
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Connect to all the units at the same time. Units which fail to connect are closed and removed
+     *
+     * @return the units which connected
+     */
+    public List<SCKDevice> connectAll() throws InterruptedException {
+        List<SCKDevice> all = getDevices();
+        List<Future<String>> responses = new ArrayList<Future<String>>();
+
+        for(SCKDevice device: all) {
+            responses.add(device.connect());
+        }
+
+        // all the units are connecting at once, so the deadline is shared
+        long deadline = System.nanoTime() + connectTimeout*1000000L;
+        List<SCKDevice> connected = new ArrayList<SCKDevice>();
+
+        for(int i = 0; i < all.size(); i++) {
+            SCKDevice device = all.get(i);
+
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                String version = responses.get(i).get(remaining, TimeUnit.NANOSECONDS);
+
+                System.out.println("Connected to " + device + ": " + version);
+                connected.add(device);
+            } catch (ExecutionException | TimeoutException e) {
+                Throwable cause = (e instanceof ExecutionException) ? e.getCause() : e;
+                System.out.println("Error connecting to " + device + ": " + cause);
+
+                device.close();
+                synchronized (this) {
+                    devices.remove(device);
+                }
+            }
+        }
+
+        return connected;
+    }
+
+    /**
+     * Run a step sequence on all the units at the same time
+     *
+     * @param stepSequence the step sequence text, i.e. the contents of the ramp sequence file
+     * @return the futures of the sequence on each unit, which are true if the sequence ran to the end
+     * @throws IllegalArgumentException if the sequence has an error
+     */
+    public List<Future<Boolean>> runAll(String stepSequence) {
+        Recipe recipe = Recipe.parse(SCKUtils.RAMP_SEQUENCE_FILE, stepSequence);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+        for(SCKDevice device: getDevices()) {
+            results.add(device.runRecipe(recipe));
+        }
+
+        return results;
+    }
+
+    /**
+     * Indicate if any unit is still running a sequence
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        for(SCKDevice device: getDevices()) {
+            if(device.isRunning()) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Stop the sequences on all the units
+     */
+    public void stopAll() {
+        for(SCKDevice device: getDevices()) {
+            device.stop();
+        }
+    }
+
+    /**
+     * Stop and disconnect all the units
+     */
+    public synchronized void closeAll() {
+        for(SCKDevice device: devices) {
+            device.close();
+        }
+
+        devices.clear();
+    }
+
+    /**
+     * Get a one line status of each unit
+     *
+     * @return
+     */
+    public String getStatus() {
+        StringBuilder sb = new StringBuilder();
+
+        for(SCKDevice device: getDevices()) {
+            sb.append(String.format("%-16s step %2d  set %5d  rpm %5d%n", device.getAddress(),
+                    device.getCurrentStep(), device.getCurrentSpeed(), device.getRPM(0)));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Run a step sequence on several units from the command line
+     *
+     * @param args the step sequence file followed by the units, i.e. COM3=mim COM4=tic, or by just the ports
+     *             to find out which model is on each port
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.out.println("Usage: DeviceManager <step sequence file> <port>=<mim|tic> ...");
+            return;
+        }
+
+        String stepSequence = SCKUtils.readFileAsString(args[0]);
+        if(stepSequence == null) return;
+
+        DeviceManager manager = new DeviceManager();
+        List<String> unknownPorts = new ArrayList<String>();
+
+        for(int i = 1; i < args.length; i++) {
+            int idx = args[i].lastIndexOf('=');
+
+            if(idx > 0) {
+                String model = args[i].substring(idx + 1);
+                manager.addDevice(args[i].substring(0, idx),
+                        model.equalsIgnoreCase("tic") ? SCKDevice.Model.TIC : SCKDevice.Model.MIM);
+            } else {
+                unknownPorts.add(args[i]);
+            }
+        }
+
+        manager.addDiscoveredDevices(unknownPorts);
+
+        if(manager.connectAll().isEmpty()) {
+            System.out.println("No units connected ...");
+            System.exit(1);
+        }
+
+        manager.runAll(stepSequence);
+
+        while(manager.isRunning()) {
+            Thread.sleep(1000);
+            System.out.print(manager.getStatus());
+        }
+
+        manager.closeAll();
+        Thread.sleep(1000);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,239 @@
+package org.instras.sck;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Base class for the in-JVM device simulators. Like a real board, the simulated firmware runs on its own thread:
+ * the host just copies the command bytes into an input buffer, and the firmware thread splits them into lines,
+ * runs each command and sends the response back after the configured latency. This keeps the cost of the
+ * simulation off the threads being measured in the benchmarks.
+ */
+public abstract class DeviceSimulator implements SCKTransport {
+    /**
+     * A response waiting for its delivery time
+     */
+    private static class Response {
+        private final byte[] bytes;
+
+        private final long deliveryTime;
+
+        private Response(byte[] bytes, long deliveryTime) {
+            this.bytes = bytes;
+            this.deliveryTime = deliveryTime;
+        }
+    }
+
+    private Listener listener;
+
+    private volatile boolean connected = false;
+
+    private final String name;
+
+    private final byte[] input = new byte[4096]; // ring buffer holding the bytes written by the host
+
+    private int inputHead = 0;
+
+    private int inputSize = 0;
+
+    private final StringBuilder line = new StringBuilder();
+
+    private final ArrayDeque<Response> responses = new ArrayDeque<Response>();
+
+    protected final Random random;
+
+    private int latencyMS = 0; // time from the end of a command to its response
+
+    private int jitterMS = 0; // random extra latency added to each response
+
+    private long lastDeliveryTime = 0; // used to keep the responses in order when jitter is added
+
+    /**
+     * Create a simulator
+     *
+     * @param name the name of the firmware thread
+     * @param seed the seed for the latency jitter and any noise
+     */
+    protected DeviceSimulator(String name, long seed) {
+        this.name = name;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Run a command against the simulated device. Called on the firmware thread while holding the
+     * simulator's lock
+     *
+     * @param command the command line without the terminator
+     * @return the response or null if the device doesn't respond
+     */
+    protected abstract String processCommand(String command);
+
+    /**
+     * Set the response latency
+     *
+     * @param latencyMS the fixed latency in milliseconds
+     * @param jitterMS the maximum random extra latency in milliseconds
+     */
+    public synchronized void setLatency(int latencyMS, int jitterMS) {
+        this.latencyMS = latencyMS;
+        this.jitterMS = jitterMS;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void open() throws IOException {
+        connected = true;
+
+        Thread firmwareThread = new Thread(name) {
+            public void run() {
+                runFirmware();
+            }
+        };
+
+        firmwareThread.setDaemon(true);
+        firmwareThread.start();
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int offset, int length) {
+        for(int i = offset; i < offset + length; i++) {
+            if(inputSize == input.length) {
+                System.out.println(name + ": input buffer overflow");
+                break;
+            }
+
+            input[(inputHead + inputSize) % input.length] = data[i];
+            inputSize++;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * The firmware loop. Processes the commands as they arrive and delivers the responses when they are due
+     */
+    private void runFirmware() {
+        while(connected) {
+            Response due = null;
+
+            synchronized (this) {
+                processInput();
+
+                Response next = responses.peek();
+                long now = System.nanoTime();
+
+                try {
+                    if(next == null) {
+                        wait();
+                    } else if(next.deliveryTime > now) {
+                        long waitTime = next.deliveryTime - now;
+                        wait(waitTime/1000000L, (int)(waitTime % 1000000L));
+                    } else {
+                        due = responses.poll();
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            // deliver outside the lock, the same way bytes arrive from a real port
+            if(due != null && listener != null) {
+                listener.dataReceived(due.bytes, 0, due.bytes.length);
+            }
+        }
+    }
+
+    /**
+     * Split the buffered input into lines and run each command
+     */
+    private void processInput() {
+        while(inputSize > 0) {
+            char c = (char)input[inputHead];
+            inputHead = (inputHead + 1) % input.length;
+            inputSize--;
+
+            if(c == '\n') {
+                String command = line.toString().trim();
+                line.setLength(0);
+
+                if(!command.isEmpty()) {
+                    String response = processCommand(command);
+                    if(response != null) {
+                        queueResponse(response + "\r\n");
+                    }
+                }
+            } else if(c != '\r') {
+                line.append(c);
+            }
+        }
+    }
+
+    /**
+     * Queue a response for delivery after the simulated latency
+     *
+     * @param response
+     */
+    private void queueResponse(String response) {
+        int delay = latencyMS + (jitterMS > 0 ? random.nextInt(jitterMS + 1) : 0);
+        queueResponse(response, delay*1000000L);
+    }
+
+    /**
+     * Queue a response for delivery after a given delay. Called on the firmware thread from processCommand
+     * when a command gets more than one response, or responses with their own timing
+     *
+     * @param response the response including the line terminator
+     * @param delayNanos the time from now to deliver the response
+     */
+    protected void queueResponse(String response, long delayNanos) {
+        // a serial link never reorders bytes, so don't deliver before the previous response
+        long deliveryTime = Math.max(System.nanoTime() + delayNanos, lastDeliveryTime);
+        lastDeliveryTime = deliveryTime;
+
+        responses.add(new Response(response.getBytes(), deliveryTime));
+    }
+
+    /**
+     * Get the integer argument of a command
+     *
+     * @param command
+     * @return the value after the ',', or 0 if there isn't one or it's not a number
+     */
+    protected static int getCommandValue(String command) {
+        int idx = command.indexOf(',');
+        if(idx < 0) return 0;
+
+        try {
+            return Integer.parseInt(command.substring(idx + 1).trim());
+        } catch(NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the command name, i.e. SetRPM for SetRPM,1200
+     *
+     * @param command
+     * @return
+     */
+    protected static String getCommandName(String command) {
+        int idx = command.indexOf(',');
+        return (idx > 0) ? command.substring(0, idx) : command;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public synchronized void close() {
+        connected = false;
+        notifyAll();
+    }
+}
@@ -6,6 +6,7 @@ package org.instras.sck;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
 import javax.swing.*;
 import javax.swing.event.*;
 
@@ -111,7 +112,12 @@ public class DipCoater extends JFrame {
     private void connButtonActionPerformed() {
         sckTalk.setTestMode(testModeCheckBox.isSelected());
 
-        sckTalk.connect("COM8");
+        try {
+            sckTalk.connect("COM8");
+        } catch(IOException e) {
+            System.out.println("Unable to connect to ST-V3: " + e.getMessage());
+            return;
+        }
 
         String response = sckTalk.setModePC();
 
@@ -0,0 +1,229 @@
+package org.instras.sck;
+
+/**
+ * Framing codec shared by all the protocol classes. Commands are encoded as a line with the device's
+ * terminator, and the bytes coming back from the transport are collected into response lines. A response
+ * is considered complete as soon as the \n terminator arrives, or the MiM value:TT pattern has been received,
+ * so the caller no longer has to sleep a fixed amount of time before reading the response.
+ *
+ * Response lines are handed over as a range of a reusable byte buffer, and integer commands and values can be
+ * encoded and parsed directly on byte arrays, so high rate polling doesn't create any garbage.
+ */
+public class LineFrameCodec implements SCKTransport.Listener {
+    /**
+     * Receives each complete response line. The buffer is reused for the next line, so the bytes
+     * must be copied if they are needed after the call returns
+     */
+    public interface FrameListener {
+        void frameReceived(byte[] buffer, int offset, int length);
+    }
+
+    public static final String MIM_TERMINATOR = "\r\n"; // used by the MiM board and the Tic bridge
+
+    public static final String STV3_TERMINATOR = "\n\r"; // used by the ST-V3 and the HC-06 examples
+
+    public static final int NO_VALUE = Integer.MIN_VALUE; // returned when a response has no integer value
+
+    public static final int MAX_LINE_LENGTH = 256;
+
+    private final byte[] terminator;
+
+    private final FrameListener listener;
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+
+    private int lineLength = 0;
+
+    private int charsAfterColon = -1; // number of characters read after the ':' in a MiM response
+
+    private CommandStats stats; // counts the bytes received if set
+
+    /**
+     * Create a codec
+     *
+     * @param terminator the line terminator added to each command
+     * @param listener receives the response lines
+     */
+    public LineFrameCodec(String terminator, FrameListener listener) {
+        this.terminator = terminator.getBytes();
+        this.listener = listener;
+    }
+
+    /**
+     * Set the stats used to count the bytes received
+     *
+     * @param stats
+     */
+    public void setStats(CommandStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Encode a command for sending to the device
+     *
+     * @param command the command without the line terminator
+     * @return
+     */
+    public byte[] encode(String command) {
+        byte[] bytes = command.getBytes();
+        byte[] data = new byte[bytes.length + terminator.length];
+
+        System.arraycopy(bytes, 0, data, 0, bytes.length);
+        System.arraycopy(terminator, 0, data, bytes.length, terminator.length);
+        return data;
+    }
+
+    /**
+     * Encode a command such as SetRPM,1200 into a preallocated buffer
+     *
+     * @param verb the ascii command name
+     * @param value the integer argument, or NO_VALUE to send just the command name
+     * @param out the buffer to write to
+     * @return the number of bytes written
+     */
+    public int encode(byte[] verb, int value, byte[] out) {
+        int pos = verb.length;
+        System.arraycopy(verb, 0, out, 0, pos);
+
+        if(value != NO_VALUE) {
+            out[pos++] = ',';
+            pos = writeInt(value, out, pos);
+        }
+
+        System.arraycopy(terminator, 0, out, pos, terminator.length);
+        return pos + terminator.length;
+    }
+
+    /**
+     * Write the ascii digits of an integer
+     *
+     * @param value
+     * @param out
+     * @param pos the position to start writing at
+     * @return the position after the last digit
+     */
+    private static int writeInt(int value, byte[] out, int pos) {
+        long v = value;
+        if(v < 0) {
+            out[pos++] = '-';
+            v = -v;
+        }
+
+        // count the digits then fill them in from the right
+        int digits = 1;
+        for(long t = v; t >= 10; t /= 10) {
+            digits++;
+        }
+
+        int end = pos + digits;
+        for(int i = end - 1; i >= pos; i--) {
+            out[i] = (byte)('0' + v % 10);
+            v /= 10;
+        }
+
+        return end;
+    }
+
+    /**
+     * Parse the integer value of a response without creating a string. For MiM responses such as RPM,1234:TT
+     * the value between the ',' and ':' is used, otherwise the whole line is parsed, i.e. 1234 from the Tic bridge
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return the value or NO_VALUE if the response doesn't hold a number
+     */
+    public static int parseValue(byte[] buffer, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+
+        for(int i = offset; i < end; i++) {
+            if(buffer[i] == ',') {
+                start = i + 1;
+            } else if(buffer[i] == ':') {
+                end = i;
+                break;
+            }
+        }
+
+        // skip spaces around the number
+        while(start < end && buffer[start] == ' ') start++;
+        while(end > start && buffer[end - 1] == ' ') end--;
+
+        boolean negative = false;
+        if(start < end && buffer[start] == '-') {
+            negative = true;
+            start++;
+        }
+
+        if(start == end) return NO_VALUE;
+
+        long value = 0;
+        for(int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if(digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                return NO_VALUE;
+            }
+
+            value = value*10 + digit;
+        }
+
+        value = negative ? -value : value;
+        if(value < Integer.MIN_VALUE + 1 || value > Integer.MAX_VALUE) {
+            return NO_VALUE;
+        }
+
+        return (int)value;
+    }
+
+    /**
+     * Called by the transport when data arrives
+     */
+    @Override
+    public synchronized void dataReceived(byte[] buffer, int offset, int length) {
+        if(stats != null) stats.addBytesIn(length);
+
+        for(int i = offset; i < offset + length; i++) {
+            accept(buffer[i]);
+        }
+    }
+
+    /**
+     * Add a single byte to the current line, and pass the line on once it's complete
+     *
+     * @param b
+     */
+    private void accept(byte b) {
+        if(b == '\n') {
+            completeFrame();
+        } else if(b != '\r') {
+            if(lineLength < line.length) {
+                line[lineLength++] = b;
+            }
+
+            if(b == ':') {
+                charsAfterColon = 0;
+            } else if(charsAfterColon >= 0 && ++charsAfterColon == 2) {
+                completeFrame();
+            }
+        }
+    }
+
+    /**
+     * Pass the current line to the listener and reset for the next one. Blank lines are ignored.
+     */
+    private void completeFrame() {
+        int start = 0;
+        int end = lineLength;
+
+        while(start < end && line[start] <= ' ') start++;
+        while(end > start && line[end - 1] <= ' ') end--;
+
+        lineLength = 0;
+        charsAfterColon = -1;
+
+        if(end > start) {
+            listener.frameReceived(line, start, end - start);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package org.instras.sck;
+
+/**
+ * In-JVM simulation of the MiM control board, which plugs in as a transport so MiMTalk and everything above it
+ * can run without an SCK-300 connected. It speaks the MiM command set, models the BLDC motor as a first order
+ * system with a non-linear start-up region, and adds configurable response latency and RPM noise.
+ *
+ * Responses use the MiM format NAME,value:TT. Like the bridge, the y mode byte is answered with the mode banner
+ * when it turns MIM mode on, but turns it off again silently if it was already on.
+ */
+public class MiMSimulator extends DeviceSimulator {
+    // simulation settings
+    private double noiseRPM = 0; // standard deviation of the noise added to the measured rpm
+
+    private double timeConstant = 0.4; // time constant of the motor in seconds
+
+    // board state
+    private String version = "MIM SCK-300P Simulator v1.0";
+
+    private boolean mimMode = false; // the bridge's mode, which stays set while the port is closed
+
+    private boolean bldcOn = false;
+
+    private boolean stepperOn = false;
+
+    private int pwm = 0;
+
+    private int slope = 930;
+
+    private int intercept = 350;
+
+    private int startPWM = 0;
+
+    private int frequency = 0;
+
+    private double rpm = 0; // the actual speed of the motor
+
+    private long lastUpdate = System.nanoTime();
+
+    /**
+     * Create a simulator with a fixed random seed so runs are reproducible
+     */
+    public MiMSimulator() {
+        this(1234L);
+    }
+
+    /**
+     * Create a simulator
+     *
+     * @param seed the seed for the latency jitter and rpm noise
+     */
+    public MiMSimulator(long seed) {
+        super("MiM Simulator", seed);
+    }
+
+    /**
+     * Set the noise added to the measured rpm
+     *
+     * @param noiseRPM the standard deviation in rpm
+     */
+    public synchronized void setNoise(double noiseRPM) {
+        this.noiseRPM = noiseRPM;
+    }
+
+    /**
+     * Set how quickly the motor responds to a new pwm value
+     *
+     * @param timeConstant the time constant in seconds
+     */
+    public synchronized void setTimeConstant(double timeConstant) {
+        this.timeConstant = timeConstant;
+    }
+
+    /**
+     * Set the version string returned by GetVersion
+     *
+     * @param version
+     */
+    public synchronized void setVersion(String version) {
+        this.version = version;
+    }
+
+    /**
+     * Run a command against the simulated board
+     *
+     * @param command
+     * @return the response or null if the board doesn't respond
+     */
+    @Override
+    protected String processCommand(String command) {
+        updateMotor();
+
+        String cmd = getCommandName(command);
+        int value = getCommandValue(command);
+
+        switch (cmd) {
+            case "y":
+                mimMode = !mimMode;
+                return mimMode ? "MIM SCK-300[P] MODE ..." : null;
+            case "GetVersion":
+                return version;
+            case "BLDCon":
+                bldcOn = true;
+                return "BLDC,1:TT";
+            case "BLDCoff":
+                bldcOn = false;
+                pwm = 0;
+                return "BLDC,0:TT";
+            case "SetRPM":
+                pwm = convertRPMToPWM(value);
+                return "RPM," + value + ":TT";
+            case "GetRPM":
+                return "RPM," + getMeasuredRPM() + ":TT";
+            case "SetPWM":
+                pwm = value;
+                return "PWM," + value + ":TT";
+            case "SetSlope":
+                slope = value;
+                return "SLOPE," + value + ":TT";
+            case "SetIntercept":
+                intercept = value;
+                return "INTERCEPT," + value + ":TT";
+            case "SetStartPWM":
+                startPWM = value;
+                return "STARTPWM," + value + ":TT";
+            case "SetFreq":
+                frequency = value;
+                return "FREQ," + value + ":TT";
+            case "GetFreq":
+                return "FREQ," + (stepperOn ? frequency : 0) + ":TT";
+            case "MoveUp":
+                return "MOVEUP," + value + ":TT";
+            case "STEPon":
+                stepperOn = true;
+                return "STEP,1:TT";
+            case "STEPoff":
+                stepperOn = false;
+                frequency = 0;
+                return "STEP,0:TT";
+            case "SleepOn":
+                return "SLEEP,1:TT";
+            case "SleepOff":
+                return "SLEEP,0:TT";
+            default:
+                return "ERROR,0:TT";
+        }
+    }
+
+    /**
+     * Convert the rpm to a pwm value using the linear calibration stored on the board
+     *
+     * @param desiredRPM
+     * @return
+     */
+    private int convertRPMToPWM(int desiredRPM) {
+        if(desiredRPM <= 0) return 0;
+
+        int value = (int)((desiredRPM - intercept)*100.0/slope);
+        return Math.max(value, startPWM);
+    }
+
+    /**
+     * The steady state speed of the motor for a pwm value. Below 100 the motor stalls, and just above that the
+     * speed drops off from the straight line, which is why the single line calibration is poor at low rpm
+     *
+     * @param pwm
+     * @return
+     */
+    public static double steadyStateRPM(int pwm) {
+        if(pwm < 100) return 0;
+
+        return 9.6*pwm + 350 - 600*Math.exp(-(pwm - 100)/60.0);
+    }
+
+    /**
+     * Move the motor speed towards the steady state speed for the elapsed time
+     */
+    private void updateMotor() {
+        long now = System.nanoTime();
+        double dt = (now - lastUpdate)/1e9;
+        lastUpdate = now;
+
+        double target = bldcOn ? steadyStateRPM(pwm) : 0;
+        rpm = target + (rpm - target)*Math.exp(-dt/timeConstant);
+    }
+
+    /**
+     * Get the rpm as the board would measure it, with noise
+     *
+     * @return
+     */
+    private int getMeasuredRPM() {
+        if(rpm < 1) return 0;
+
+        double measured = rpm + random.nextGaussian()*noiseRPM;
+        return (int)Math.max(0, Math.round(measured));
+    }
+}
@@ -1,13 +1,14 @@
 package org.instras.sck;
 
-import gnu.io.NRSerialPort;
-
 import javax.swing.*;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Created with IntelliJ IDEA.
@@ -37,17 +38,49 @@ public class MiMTalk {
 
     private JTextArea console;
 
-    private NRSerialPort serial;
-
-    private DataInputStream ins;
+    private SCKTransport transport;
 
-    private DataOutputStream outs;
+    private CommandPipeline pipeline;
 
     public MotorType currentMotor = MotorType.BLDC;
 
     public final int RESPONSE_DELAY_MS = 200; // The response delay in milliseconds
 
-    private boolean runRamp = false; // used to breakout of the run ramp program
+    private int responseTimeout = 1000; // max time in milliseconds to wait for a response line
+
+    private int bootTimeout = 3000; // max time in milliseconds to wait for the board to boot and send its mode banner
+
+    // pre-encoded command names for the integer commands sent while polling and ramping
+    private static final byte[] GET_RPM = "GetRPM".getBytes();
+    private static final byte[] SET_RPM = "SetRPM".getBytes();
+    private static final byte[] SET_PWM = "SetPWM".getBytes();
+    private static final byte[] GET_FREQ = "GetFreq".getBytes();
+    private static final byte[] SET_FREQ = "SetFreq".getBytes();
+
+    private final RampScheduler rampScheduler = new RampScheduler(this::setRPM); // runs the acceleration ramps
+
+    // runs the stepper ramps, which set the step frequency
+    private final RampScheduler stepperScheduler = new RampScheduler(speed -> {
+        int frequency = convertRPMToFrequency(speed);
+        queryInt(SET_FREQ, frequency);
+        System.out.println("Set Stepper Speed " + speed + ", Frequency: " + frequency);
+    });
+
+    private float jerk = 0; // jerk limit of the ramps in rpm per second squared, 0 for linear ramps
+
+    public static final int BLDC_COMMAND_RATE = 4; // setpoints per second sent while ramping the BLDC motor
+
+    public static final int STEPPER_COMMAND_RATE = 50; // setpoints per second sent while ramping the stepper motor
+
+    public static final int STEPPER_ACCELERATION = 5000; // in rpm per second
+
+    public static final int PROFILE_SAMPLE_PERIOD_MS = 50; // time between rpm samples while profiling
+
+    public static final int PROFILE_TIMEOUT_MS = 4000; // max time to wait for a profile point to settle
+
+    private MotorProfiler.Profile lastProfile = null;
+
+    private volatile CalibrationTable calibration = null; // sets the BLDC pwm from the host instead of SetRPM
 
     /**
      * Set the motor type
@@ -58,6 +91,16 @@ public class MiMTalk {
         currentMotor = motorType;
     }
 
+    /**
+     * Set the jerk limit of the BLDC ramps. With a limit the ramps follow an S-curve, which stops the ball
+     * bearing motors from overshooting the desired rpm
+     *
+     * @param jerk in rpm per second squared, or 0 for linear ramps
+     */
+    public void setJerk(float jerk) {
+        this.jerk = jerk;
+    }
+
     /**
      * Used to pass messages back to the GUI application
      *
@@ -68,31 +111,52 @@ public class MiMTalk {
     }
 
     /**
-     * Used for testing the API
+     * Used for testing the API. In test mode connect uses the in-JVM MiM simulator instead of the serial port
      * @param test
      */
     public void setTestMode(boolean test) {
         this.testMode = test;
     }
 
+    /**
+     * Set the maximum time to wait for a response from the MiM board
+     *
+     * @param timeoutMS timeout in milliseconds
+     */
+    public void setResponseTimeout(int timeoutMS) {
+        this.responseTimeout = timeoutMS;
+    }
+
     /**
      * Method to connect to the serial port
      *
-     * @param portName
+     * @param portName the serial port, or a btspp:// or tcp:// address
      */
-    public void connect(String portName) {
-        if(testMode) return;
+    public void connect(String portName) throws IOException {
+        if(testMode) {
+            connect(new MiMSimulator());
+        } else {
+            connect(SCKTransport.create(portName, 19200));
+        }
+    }
 
-        serial = new NRSerialPort(portName, 19200);
-        serial.connect();
+    /**
+     * Method to connect to the MiM board over the given transport
+     *
+     * @param transport
+     */
+    public void connect(SCKTransport transport) throws IOException {
+        this.transport = transport;
 
-        ins = new DataInputStream(serial.getInputStream());
-        outs = new DataOutputStream(serial.getOutputStream());
+        // read responses as the data arrives and match them to the commands in flight
+        pipeline = new CommandPipeline(transport, LineFrameCodec.MIM_TERMINATOR);
+        transport.open();
 
-        // set to TIC Mode
+        // set to MIM Mode. Wait for the banner instead of a fixed delay, since only some boards reset on open
         try {
-            Thread.sleep(2000);
-            sendCommand("y");
+            if(pipeline.handshake("y", "MIM SCK-300[P] MODE", "GetVersion", bootTimeout) == null) {
+                System.out.println("No MIM mode banner. Check the connection ...");
+            }
         } catch(InterruptedException e) {}
     }
 
@@ -107,20 +171,18 @@ public class MiMTalk {
     }
 
     /**
-     * Method to send a command to the MiM board
+     * Method to send a command to the MiM board. Other threads can send commands at the same time,
+     * since the responses are matched to the commands by the pipeline
      *
      * @param command
      * @param wfr wait for response
      * @return
      */
-    public synchronized String sendCommand(String command, boolean wfr) {
-        if(testMode) return "OK";
-
+    public String sendCommand(String command, boolean wfr) {
         try {
-            command += "\r\n";
-            outs.writeBytes(command);
+            Future<String> response = sendCommandAsync(command);
             if(wfr) {
-                return readResponse();
+                return waitForResponse(response);
             } else {
                 return "";
             }
@@ -132,30 +194,61 @@ public class MiMTalk {
     }
 
     /**
-     * Method to read the results after a command has been sent
+     * Method to send a command to the MiM board without waiting for the response
+     *
+     * @param command
+     * @return the future response
+     * @throws IOException
+     */
+    public Future<String> sendCommandAsync(String command) throws IOException {
+        return pipeline.submit(command, true);
+    }
+
+    /**
+     * Method to read the response to the oldest command still in flight, i.e. one sent without
+     * waiting for the response
      *
      * @return
      */
     public String readResponse() {
-        try {
-            // wait 0.n00 second so data can arrive from MiM
-            Thread.sleep(RESPONSE_DELAY_MS);
-            if(testMode) return "TESTMODE,0:TT";
-
-            StringBuilder sb = new StringBuilder(); //ins.readUTF();
-            byte[] buffer = new byte[128];
-            int len = -1;
-
-            while ((len = ins.read(buffer)) > 0 ) {
-                sb.append(new String(buffer,0,len));
-            }
+        Future<String> response = pipeline.oldestPending();
+        return (response != null) ? waitForResponse(response) : "";
+    }
 
-            String response = sb.toString().trim();
-            //System.out.println("Response: " + response);
-            return response;
+    /**
+     * Send an integer command and parse the integer value of the response without creating any garbage
+     *
+     * @param verb the command name
+     * @param value the argument or LineFrameCodec.NO_VALUE
+     * @return the response value or LineFrameCodec.NO_VALUE if there was no valid response
+     */
+    public int queryInt(byte[] verb, int value) {
+        try {
+            return pipeline.queryInt(verb, value, responseTimeout);
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("COMM/IO Error. Ignore ...");
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return LineFrameCodec.NO_VALUE;
+    }
+
+    /**
+     * Wait for a response up to the response timeout
+     *
+     * @param response
+     * @return the response, or an empty string if nothing arrived before the timeout
+     */
+    private String waitForResponse(Future<String> response) {
+        try {
+            return response.get(responseTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            response.cancel(false);
+            return "";
+        } catch (CancellationException e) {
+            return "";
+        } catch (InterruptedException | ExecutionException e) {
             e.printStackTrace();
         }
 
@@ -188,67 +281,131 @@ public class MiMTalk {
     }
 
     /**
-     * Method to get a performance profile
+     * Method to get a performance profile. Each pwm point is read as soon as the speed settles, up to the
+     * profile timeout, instead of after a fixed wait
      *
      * @param increment
-     * @return
+     * @return the pwm (x), rpm (y) and settling time in ms (settle) of each point
      */
     public HashMap<String, Double[]> getMotorProfile(int increment) throws Exception {
-        HashMap<String, Double[]> motorProfileMap = new HashMap<String, Double[]>();
-        ArrayList<Double> xlist = new ArrayList<Double>();
-        ArrayList<Double> ylist = new ArrayList<Double>();
+        return runMotorProfile(profiler -> profiler.run(110, 1000, increment, this::printProfilePoint));
+    }
+
+    /**
+     * Method to get a performance profile which starts with a coarse sweep, then adds points only where the
+     * curve isn't straight, i.e. in the start-up region. This takes far fewer points than a fine uniform sweep
+     *
+     * @param coarseIncrement the pwm spacing of the first sweep
+     * @param minIncrement the closest the points are added
+     * @param maxResidualRPM how far a point can be from the line through its neighbours before points are added
+     *                       around it
+     * @return the pwm (x), rpm (y) and settling time in ms (settle) of each point, in pwm order
+     */
+    public HashMap<String, Double[]> getAdaptiveMotorProfile(int coarseIncrement, int minIncrement,
+                                                             double maxResidualRPM) throws Exception {
+        return runMotorProfile(profiler -> profiler.runAdaptive(110, 1000, coarseIncrement, minIncrement,
+                maxResidualRPM, this::printProfilePoint));
+    }
 
+    /**
+     * Sweep the motor with a profiler which reads the rpm from its own sampler
+     *
+     * @param sweep runs the profiler
+     * @return
+     */
+    private HashMap<String, Double[]> runMotorProfile(ProfileSweep sweep) throws Exception {
         kickStart(75); // 200 for regular 2838, 75 for ball bearing 2838
 
-        print("PWM\tRPM");
+        RPMSampler sampler = new RPMSampler(this, 1024);
+        sampler.setSamplePeriod(PROFILE_SAMPLE_PERIOD_MS);
+        sampler.start();
 
-        for(int i = 110; i <= 1000   ; i += increment) {
-            sendCommand("SetPWM," + i);
+        MotorProfiler profiler = new MotorProfiler(pwm -> sendCommand("SetPWM," + pwm), sampler);
+        profiler.setTimeout(PROFILE_TIMEOUT_MS);
 
-            Double rpm = -1.0;
-            String response = sendCommand("GetRPM");
-            response = getResponseValue(response);
+        print("PWM\tRPM\tSettle (ms)");
 
-            // wait 2 seconds
-            Thread.sleep(2000);
+        try {
+            lastProfile = sweep.run(profiler);
+        } finally {
+            sampler.stop();
+        }
 
-            try {
-                rpm = new Double(response);
-            } catch(NumberFormatException nfe) {
-                print("Invalid RPM data: " + response);
-            }
+        print("Profile Points: " + lastProfile.getLength() + ", Profile Time (s): " +
+                lastProfile.getTotalMS()/1000.0 + ", Not Settled: " + lastProfile.getUnsettledCount());
 
-            xlist.add(new Double(i));
-            ylist.add(rpm);
+        return lastProfile.toMap();
+    }
 
-            // set the min and max rpm
-            int irpm = rpm.intValue();
-            if(irpm > 0 && minMotorRPM == 0) {
-                minMotorRPM = irpm;
-            } else if(irpm > maxMotorRPM) {
-                maxMotorRPM = irpm;
-            }
+    private interface ProfileSweep {
+        MotorProfiler.Profile run(MotorProfiler profiler) throws InterruptedException;
+    }
 
-            print(i + "\t" + irpm);
+    /**
+     * Print a profile point and keep track of the min and max rpm
+     */
+    private void printProfilePoint(int pwm, int rpm, long settleMS, boolean settled) {
+        // set the min and max rpm
+        if(rpm > 0 && minMotorRPM == 0) {
+            minMotorRPM = rpm;
+        } else if(rpm > maxMotorRPM) {
+            maxMotorRPM = rpm;
         }
 
-        // create the double arrays
-        Double[] x = new Double[xlist.size()];
-        Double[] y = new Double[ylist.size()];
+        print(pwm + "\t" + rpm + "\t" + settleMS + (settled ? "" : " (not settled)"));
+    }
+
+    /**
+     * Profile the motor and fit a host calibration to it. The calibration isn't used until it's set
+     *
+     * @return the calibration
+     * @throws IllegalArgumentException if the motor didn't run during the profile
+     */
+    public CalibrationTable calibrate() throws Exception {
+        getAdaptiveMotorProfile(100, 25, 25);
 
-        motorProfileMap.put("x", xlist.toArray(x));
-        motorProfileMap.put("y", ylist.toArray(y));
+        CalibrationTable table = CalibrationTable.fit(lastProfile);
+        print(table.toString());
 
-        return motorProfileMap;
+        return table;
     }
 
     /**
-     * Method to set the rpm
+     * Get the points of the last motor profile, with the settling time of each one
+     *
+     * @return the profile or null if one hasn't been run
+     */
+    public MotorProfiler.Profile getLastProfile() {
+        return lastProfile;
+    }
+
+    /**
+     * Method to set the rpm. With a host calibration the BLDC pwm is looked up and set directly, otherwise the
+     * board works out the pwm from its slope and intercept
      *
      * @param desiredRPM
      */
     public void setRPM(int desiredRPM) {
-        sendCommand("SetRPM," + desiredRPM);
+        CalibrationTable table = calibration;
+
+        if(table != null && currentMotor == MotorType.BLDC) {
+            queryInt(SET_PWM, table.toPWM(desiredRPM));
+        } else {
+            queryInt(SET_RPM, desiredRPM);
+        }
+    }
+
+    /**
+     * Use a host calibration for the BLDC speed, or go back to the board's slope and intercept
+     *
+     * @param calibration the calibration or null
+     */
+    public void setCalibration(CalibrationTable calibration) {
+        this.calibration = calibration;
+    }
+
+    public CalibrationTable getCalibration() {
+        return calibration;
     }
 
     /**
@@ -258,7 +415,7 @@ public class MiMTalk {
      */
     public void rampToRPM(int desiredRPM) {
         if (desiredRPM <= 500) {
-            sendCommand("SetRPM," + desiredRPM);
+            setRPM(desiredRPM);
             System.out.println("Setting Desired RPM Directly: " + desiredRPM);
         } else {
             int step = 300;
@@ -270,7 +427,7 @@ public class MiMTalk {
                 }
 
                 System.out.println("Setting Speed " + speed + " index: " + i);
-                sendCommand("SetRPM," + speed);
+                setRPM(speed);
             }
         }
     }
@@ -289,8 +446,6 @@ public class MiMTalk {
     public int rampToRPM(int desiredRPM, float acceleration, int currentRPM,
                          JLabel speedLabel, JLabel timeLabel) {
         try {
-            runRamp = true;
-
             // calculate the time to desired rpm in milliseconds
             int rpmDiff = Math.abs(desiredRPM - currentRPM);
             float timeToDesiredRPM = (rpmDiff/acceleration)*1000;
@@ -298,13 +453,7 @@ public class MiMTalk {
             String message = "Time to Desired RPM (ms): " + (int)timeToDesiredRPM;
             print("\n" + message);
 
-            float timeTotal = 0;
-            int cps = 4; // the commands to send per second
-            int delayMS = 1000/cps - RESPONSE_DELAY_MS;
-            if(delayMS < 0) delayMS = 0;
-
-
-            int step = (int)acceleration/cps;
+            int step = (int)acceleration/BLDC_COMMAND_RATE;
             int startRPM;
 
             // see if to set the current rpm to the lowest speed the SCK-300 can run at
@@ -314,41 +463,40 @@ public class MiMTalk {
                 startRPM = currentRPM;
             }
 
-            for (int i = startRPM; i <= (desiredRPM + step); i += step) {
-                // check to see if to continue running the ramp program
-                if(!runRamp) break;
-
-                int speed = i;
-                if (speed > desiredRPM) {
-                    speed = desiredRPM;
-                }
-
-                //System.out.println("Setting Speed " + speed + " index: " + i + " delay: " + delayMS);
-                sendCommand("SetRPM," + speed);
+            // the setpoints follow the clock, so the round trip and label updates don't slow down the ramp
+            Trajectory trajectory = Trajectory.compile(Math.min(startRPM, desiredRPM), desiredRPM, acceleration,
+                    jerk, BLDC_COMMAND_RATE);
 
-                // update the UI
+            runTrajectory(trajectory, (speed, elapsedMS) -> {
                 if(speedLabel != null) {
                     String speedString = SCKUtils.zeroPad(speed);
                     speedLabel.setText("*" + speedString) ;
 
-                    String speedTime = SCKUtils.zeroPad((int)timeTotal/1000);
+                    String speedTime = SCKUtils.zeroPad((int)elapsedMS/1000);
                     timeLabel.setText("*" + speedTime);
                 }
+            });
 
-                Thread.sleep(delayMS);
-                timeTotal += delayMS + RESPONSE_DELAY_MS;
-            }
-
-            message = "Time Actually Taken (ms): " + (int)timeTotal;
-            print(message + "\n");
+            print(rampScheduler.getTimingSummary() + "\n");
 
-            return (int)timeTotal/1000;
+            return (int)rampScheduler.getElapsedMS()/1000;
         } catch (InterruptedException e) {
             e.printStackTrace();
             return 0;
         }
     }
 
+    /**
+     * Run a compiled ramp on the BLDC motor
+     *
+     * @param trajectory
+     * @param listener called after each setpoint, or null
+     * @return true if the ramp reached the end speed, false if it was stopped
+     */
+    public boolean runTrajectory(Trajectory trajectory, RampScheduler.Listener listener) throws InterruptedException {
+        return rampScheduler.run(trajectory, listener);
+    }
+
     /**
      * Method to move to desired stepper rpm in steps. This prevents the stepper motor from
      * miss stepping up to a certain point
@@ -366,48 +514,20 @@ public class MiMTalk {
                 sendCommand("MoveUp,10000000");
             }
 
-            int step = 100; // move in steps of 100 rpms
-            int frequency;
-            int rpmDiff = desiredRPM - currentRPM;
+            int step = 100; // below this the stepper can go straight to the speed
 
-            // the the desired rpm is less than the step size or we moving down in speed go
-            // to speed directly without ramping up
+            // the the desired rpm is less than the step size go to speed directly without ramping up
             if(desiredRPM < step) {
-                frequency = convertRPMToFrequency(desiredRPM);
-                sendCommand("SetFreq," + frequency);
+                int frequency = convertRPMToFrequency(desiredRPM);
+                queryInt(SET_FREQ, frequency);
             } else {
-                if(rpmDiff > 0) { // moving to higher speed
-                    for (int i = (currentRPM + step); i <= (desiredRPM + step); i += step) {
-                        int speed = i;
-
-                        if (speed > desiredRPM) {
-                            speed = desiredRPM;
-                        }
-
-                        frequency = convertRPMToFrequency(speed);
-                        sendCommand("SetFreq," + frequency);
-
-                        System.out.println("Set Stepper Speed " + speed + ", Frequency: " + frequency);
-                        Thread.sleep(2);
-                    }
-                } else {
-                    // moving to lower speed
-                    for (int i = (currentRPM - step); i >= (desiredRPM - step); i -= step) {
-                        int speed = i;
-
-                        if (speed < desiredRPM) {
-                            speed = desiredRPM;
-                        }
-
-                        frequency = convertRPMToFrequency(speed);
-                        sendCommand("SetFreq," + frequency);
-
-                        System.out.println("Set Stepper Speed " + speed + ", Frequency: " + frequency);
-                        Thread.sleep(2);
-                    }
-                }
-            }
+                // the first setpoint is one step away from the current speed, as the motor is already there
+                int startRPM = (desiredRPM > currentRPM) ? Math.min(currentRPM + step, desiredRPM) :
+                        Math.max(currentRPM - step, desiredRPM);
 
+                stepperScheduler.run(Trajectory.trapezoid(startRPM, desiredRPM, STEPPER_ACCELERATION,
+                        STEPPER_COMMAND_RATE), null);
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -417,27 +537,30 @@ public class MiMTalk {
      * Method used to stop the ramp program
      */
     public void stopRamp() {
-        runRamp = false;
+        rampScheduler.stop();
+        stepperScheduler.stop();
     }
 
     /**
-     * A convenience method to get the RPM value as an it
+     * A convenience method to get the RPM value as an int. Returns -1 if there was no valid response
      *
      * @return
      */
     public int getRPM(double roundTo) {
-        if(testMode) return -1;
-
-        int rpm = -1;
+        int rpm;
 
         if(currentMotor == MotorType.BLDC) {
-            String response = sendCommand("GetRPM");
-            rpm = Integer.parseInt(getResponseValue(response));
+            rpm = queryInt(GET_RPM, LineFrameCodec.NO_VALUE);
         } else {
             // stepper motor. Just get current frequency and convert to RPM
-            String response = sendCommand("GetFreq");
-            int frequency = Integer.parseInt(getResponseValue(response));
-            rpm = convertFrequencyToRPM(frequency);
+            rpm = queryInt(GET_FREQ, LineFrameCodec.NO_VALUE);
+            if(rpm != LineFrameCodec.NO_VALUE) {
+                rpm = convertFrequencyToRPM(rpm);
+            }
+        }
+
+        if(rpm == LineFrameCodec.NO_VALUE) {
+            return -1;
         }
 
         if(roundTo > 0) {
@@ -599,20 +722,54 @@ public class MiMTalk {
         return response.substring(idx1, idx2);
     }
 
+    /**
+     * Get the round trip latency, timeout and byte counts of the commands sent to the MiM board
+     *
+     * @return
+     */
+    public CommandStats getStats() {
+        return pipeline.getStats();
+    }
+
+    /**
+     * Record every command and response to a run file
+     *
+     * @param recorder the recorder, or null to stop recording
+     */
+    public void setRecorder(RunRecorder recorder) {
+        pipeline.setRecorder(recorder);
+    }
+
+    /**
+     * Print the command stats to the console at a fixed period
+     *
+     * @param periodMS the time between dumps in milliseconds
+     */
+    public void startStatsDump(long periodMS) {
+        pipeline.getStats().startDump(periodMS, this::print);
+    }
+
+    /**
+     * Stop printing the command stats
+     */
+    public void stopStatsDump() {
+        pipeline.getStats().stopDump();
+    }
+
     /**
      * Method to close the serial port
      */
     public void close() {
-        if(testMode) return;
-
+        // the bridge turns MIM mode off without replying
         try {
-            sendCommand("y");
+            pipeline.submit("y", false);
             Thread.sleep(500);
-        } catch (InterruptedException e) {
+        } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
 
-        serial.disconnect();
+        stopStatsDump();
+        transport.close();
     }
 
     /**
@@ -657,13 +814,13 @@ public class MiMTalk {
     }
 
     /**
-     * Indicate whether the serial port is connected
+     * Indicate whether the transport is connected
      *
      * @return
      */
     public boolean isConnected() {
-        if(serial != null) {
-            return serial.isConnected();
+        if(transport != null) {
+            return transport.isConnected();
         }
         return false;
     }
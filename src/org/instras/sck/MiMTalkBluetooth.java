@@ -7,23 +7,237 @@
 package org.instras.sck;
 
 import javax.bluetooth.*;
-import javax.microedition.io.Connector;
-import javax.microedition.io.StreamConnection;
 import javax.swing.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class MiMTalkBluetooth implements DiscoveryListener{
-    
-    private static Object lock = new Object();
-    private static RemoteDevice sckDevice = null;
-    private static String connectionURL;
-    private PrintWriter printWriter;
-    private BufferedReader bufferReader;
+
+    private static final UUID SPP_UUID = new UUID("1101", true);
+
+    private final Object lock = new Object();
+    private final List<RemoteDevice> sckDevices = new ArrayList<RemoteDevice>();
+    private boolean searchCompleted = false;
+    private String serviceURL;
+    private String connectionURL;
+    private String deviceAddress;
+    private final BluetoothDeviceCache deviceCache;
+    private int searchTimeout = 30000; // max time in milliseconds to wait for an inquiry or service search
+    private SCKTransport transport;
+    private CommandPipeline pipeline;
+    private int responseTimeout = 2000; // max time in milliseconds to wait for a response line
     private boolean connected = false;
 
     private JTextArea console;
 
-    public MiMTalkBluetooth() { }
+    public MiMTalkBluetooth() {
+        this(new BluetoothDeviceCache());
+    }
+
+    /**
+     * Create a connection which shares a device cache with other connections
+     *
+     * @param deviceCache
+     */
+    public MiMTalkBluetooth(BluetoothDeviceCache deviceCache) {
+        this.deviceCache = deviceCache;
+    }
+
+    /**
+     * Connect to the first SCK unit which answers, trying the cached devices, most recently used first, before
+     * running a single inquiry for new ones. Cached devices the inquiry doesn't find are removed from the cache
+     *
+     * @return true if connected
+     */
+    public boolean connect() {
+        List<String> unreachable = new ArrayList<String>();
+
+        for(String address: deviceCache.getAddresses()) {
+            if(connectCached(address)) return true;
+            unreachable.add(address);
+        }
+
+        List<RemoteDevice> devices = inquire();
+        if(devices == null) return false;
+
+        for(RemoteDevice device: devices) {
+            String address = device.getBluetoothAddress();
+            unreachable.removeIf(cached -> cached.equalsIgnoreCase(address));
+        }
+
+        for(String address: unreachable) {
+            print("Removing unreachable device " + address + " ...");
+            deviceCache.remove(address);
+        }
+
+        for(RemoteDevice device: devices) {
+            if(connectToDevice(device)) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Connect to an SCK unit by its Bluetooth address. The cached connection url is tried first, then a service
+     * search on the address, and only if both fail an inquiry, since the module may have been re-paired. The
+     * address is removed from the cache if the inquiry doesn't find it
+     *
+     * @param address the Bluetooth address, i.e. 98D331FB1234
+     * @return true if connected
+     */
+    public boolean connect(String address) {
+        if(connectCached(address)) return true;
+
+        List<RemoteDevice> devices = inquire();
+        if(devices == null) return false;
+
+        for(RemoteDevice device: devices) {
+            if(device.getBluetoothAddress().equalsIgnoreCase(address)) {
+                return connectToDevice(device);
+            }
+        }
+
+        if(deviceCache.getURL(address) != null) {
+            print("Removing unreachable device " + address + " ...");
+            deviceCache.remove(address);
+        }
+
+        return false;
+    }
+
+    /**
+     * Connect to a unit at a known address without an inquiry, using the cached connection url or else a
+     * service search on the address
+     *
+     * @param address
+     * @return true if connected
+     */
+    private boolean connectCached(String address) {
+        String url = deviceCache.getURL(address);
+        if(url != null && connectToSCK(url)) {
+            deviceAddress = address;
+            deviceCache.markConnected(address);
+            return true;
+        } else if(url != null) {
+            print("Cached connection failed for " + address + " ...");
+        }
+
+        // the address is known so the service can be looked up without an inquiry
+        return connectToDevice(new RemoteDevice(address) { });
+    }
+
+    /**
+     * Search for the SPP service on the device, connect to it, and cache the connection url
+     *
+     * @param device
+     * @return true if connected
+     */
+    private boolean connectToDevice(RemoteDevice device) {
+        String url = findConnectionURL(device);
+        if(url == null || !connectToSCK(url)) return false;
+
+        String address = device.getBluetoothAddress();
+        deviceAddress = address;
+        deviceCache.put(address, getName(device), url);
+        deviceCache.markConnected(address);
+
+        return true;
+    }
+
+    /**
+     * Run an inquiry for HC-05 and HC-06 modules. This takes around 10 seconds
+     *
+     * @return the modules found
+     */
+    public List<RemoteDevice> findDevices() {
+        List<RemoteDevice> devices = inquire();
+        return (devices != null) ? devices : new ArrayList<RemoteDevice>();
+    }
+
+    /**
+     * Run an inquiry for HC-05 and HC-06 modules
+     *
+     * @return the modules found, or null if the inquiry couldn't run or timed out, in which case the modules
+     * which weren't found may still be in range
+     */
+    private List<RemoteDevice> inquire() {
+        synchronized (lock) {
+            sckDevices.clear();
+            searchCompleted = false;
+        }
+
+        try {
+            DiscoveryAgent agent = LocalDevice.getLocalDevice().getDiscoveryAgent();
+            agent.startInquiry(DiscoveryAgent.GIAC, this);
+
+            if(!waitForSearch()) {
+                agent.cancelInquiry(this);
+                print("Device Inquiry Timed Out. ");
+                return null;
+            }
+
+            print("Device Inquiry Completed. ");
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        synchronized (lock) {
+            return new ArrayList<RemoteDevice>(sckDevices);
+        }
+    }
+
+    /**
+     * Search a device for the SPP service
+     *
+     * @param device
+     * @return the connection url or null if the device doesn't have the service or can't be reached
+     */
+    public String findConnectionURL(RemoteDevice device) {
+        synchronized (lock) {
+            serviceURL = null;
+            searchCompleted = false;
+        }
+
+        print("Searching for service on " + device.getBluetoothAddress() + " ...");
+
+        try {
+            DiscoveryAgent agent = LocalDevice.getLocalDevice().getDiscoveryAgent();
+            int transID = agent.searchServices(null, new UUID[] {SPP_UUID}, device, this);
+
+            if(!waitForSearch()) {
+                agent.cancelServiceSearch(transID);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        synchronized (lock) {
+            return serviceURL;
+        }
+    }
+
+    /**
+     * Wait for the running inquiry or service search to complete
+     *
+     * @return false if it timed out
+     */
+    private boolean waitForSearch() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + searchTimeout;
+
+        synchronized (lock) {
+            while(!searchCompleted) {
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0) return false;
+                lock.wait(wait);
+            }
+        }
+
+        return true;
+    }
 
     /**
      * Method to connect to the SCK. The paring code for the HC-06 adapter is 1234
@@ -31,19 +245,16 @@ public class MiMTalkBluetooth implements DiscoveryListener{
     public boolean connectToSCK() {
         System.out.println("Bluetooth Connection URL: " + connectionURL);
 
+        connected = false;
+
         //connect to the sck and send a line of text
         try {
-            StreamConnection streamConnection = (StreamConnection) Connector.open(connectionURL);
-
-            // get the output and input stream for writing and reading data
-            OutputStream outStream = streamConnection.openOutputStream();
-            printWriter = new PrintWriter(new OutputStreamWriter(outStream));
-
-            InputStream inStream = streamConnection.openInputStream();
-            bufferReader = new BufferedReader(new InputStreamReader(inStream));
+            transport = new BluetoothTransport(connectionURL);
+            pipeline = new CommandPipeline(transport, LineFrameCodec.STV3_TERMINATOR);
+            transport.open();
 
             String version = sendCommand("GetVersion");
-            if(version.contains("MiM")) {
+            if(version != null && version.toUpperCase().contains("MIM")) {
                 connected = true;
                 System.out.println("Connected to SCK-300");
             }
@@ -51,21 +262,63 @@ public class MiMTalkBluetooth implements DiscoveryListener{
             e.printStackTrace();
         }
 
+        if(!connected) {
+            transport.close();
+        }
+
         return connected;
     }
 
     /**
-     * Method to send a command to the ST-V3
+     * Connect to the SCK at the connection url
+     *
+     * @param connectionURL the btspp:// url
+     * @return true if the unit answered GetVersion
+     */
+    public boolean connectToSCK(String connectionURL) {
+        this.connectionURL = connectionURL;
+        return connectToSCK();
+    }
+
+    /**
+     * Get the Bluetooth address of the connected unit
+     *
+     * @return
+     */
+    public String getAddress() {
+        return deviceAddress;
+    }
+
+    /**
+     * Indicate if connected
+     *
+     * @return
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Close the connection
+     */
+    public void close() {
+        connected = false;
+
+        if(transport != null) {
+            transport.close();
+        }
+    }
+
+    /**
+     * Method to send a command to the SCK-300
      *
      * @param command
      * @return
      */
     public String sendCommand(String command) {
         try {
-            command += "\n\r";
-            printWriter.write(command);
-            printWriter.flush();
-            return readResponse();
+            Future<String> response = pipeline.submit(command, true);
+            return response.get(responseTimeout, TimeUnit.MILLISECONDS);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
@@ -73,18 +326,14 @@ public class MiMTalkBluetooth implements DiscoveryListener{
     }
 
     /**
-     * Method to read the results after a command has been sent
+     * Method to read the response to the oldest command still in flight
      * @return
      */
     public String readResponse() {
         try {
-            // wait 1 second so data can arrive from SCK-300
-            Thread.sleep(1000);
-
-            return bufferReader.readLine();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
+            Future<String> response = pipeline.oldestPending();
+            return (response != null) ? response.get(responseTimeout, TimeUnit.MILLISECONDS) : "";
+        } catch (Exception e) {
             e.printStackTrace();
         }
 
@@ -102,18 +351,29 @@ public class MiMTalkBluetooth implements DiscoveryListener{
         }
     }
 
-    @Override
-    public void deviceDiscovered(RemoteDevice btDevice, DeviceClass arg1) {
-        String name;
+    /**
+     * Get the friendly name of a device, or its address if the name can't be read
+     *
+     * @param btDevice
+     * @return
+     */
+    private static String getName(RemoteDevice btDevice) {
         try {
-            name = btDevice.getFriendlyName(false);
+            return btDevice.getFriendlyName(false);
         } catch (Exception e) {
-            name = btDevice.getBluetoothAddress();
+            return btDevice.getBluetoothAddress();
         }
+    }
+
+    @Override
+    public void deviceDiscovered(RemoteDevice btDevice, DeviceClass arg1) {
+        String name = getName(btDevice);
 
         if(name.equals("HC-06") || name.equals("HC-05")) {
-            sckDevice = btDevice;
-            System.out.println("SCK device found: " + name);
+            synchronized (lock) {
+                sckDevices.add(btDevice);
+            }
+            System.out.println("SCK device found: " + name + " " + btDevice.getBluetoothAddress());
         }
     }
 
@@ -122,79 +382,69 @@ public class MiMTalkBluetooth implements DiscoveryListener{
         //System.out.println("Services discovered ..." + serviceRecords[0]);
 
         if(serviceRecords !=null && serviceRecords.length > 0) {
-            connectionURL = serviceRecords[0].getConnectionURL(0,false);
-        }
-
-        synchronized(lock){
-            lock.notify();
+            synchronized (lock) {
+                serviceURL = serviceRecords[0].getConnectionURL(0,false);
+            }
         }
     }
 
     @Override
     public void inquiryCompleted(int arg0) {
         synchronized(lock){
-            lock.notify();
+            searchCompleted = true;
+            lock.notifyAll();
         }
     }
 
     @Override
     public void serviceSearchCompleted(int arg0, int arg1) {
         synchronized (lock) {
-            lock.notify();
+            searchCompleted = true;
+            lock.notifyAll();
         }
     }
 
     /**
      * Main method for testing outside of the gui environment
      *
-     * @param args
+     * @param args the Bluetooth addresses of the units to connect to, or none to connect to the first unit found
      */
     public static void main(String[] args) {
-        MiMTalkBluetooth miMTalkBluetooth =  new MiMTalkBluetooth();
+        BluetoothDeviceCache deviceCache = new BluetoothDeviceCache();
+        long start = System.currentTimeMillis();
 
-        try{
-            LocalDevice localDevice = LocalDevice.getLocalDevice();
-            DiscoveryAgent agent = localDevice.getDiscoveryAgent();
-            agent.startInquiry(DiscoveryAgent.GIAC, miMTalkBluetooth);
+        if(args.length == 0) {
+            MiMTalkBluetooth miMTalkBluetooth = new MiMTalkBluetooth(deviceCache);
 
-            try {
-                synchronized(lock){
-                    lock.wait();
-                }
-            }
-            catch (InterruptedException e) {
-                e.printStackTrace();
-                return;
+            if(miMTalkBluetooth.connect()) {
+                System.out.println("Connected to SCK 300 unit " + miMTalkBluetooth.getAddress() + " in " +
+                        (System.currentTimeMillis() - start) + " ms");
+            } else {
+                System.out.println("No SCK 300 unit found ...");
             }
 
-            System.out.println("Device Inquiry Completed. ");
-
-            // set the uuid for spp, make sure second param is true
-            UUID[] uuidSet = new UUID[1];
-            uuidSet[0] = new UUID("1101", true);
+            miMTalkBluetooth.close();
+        } else {
+            // each unit gets its own connection
+            List<MiMTalkBluetooth> units = new ArrayList<MiMTalkBluetooth>();
 
-            System.out.println("\nSearching for service...");
-            agent.searchServices(null, uuidSet, sckDevice, miMTalkBluetooth);
+            for(String address: args) {
+                MiMTalkBluetooth miMTalkBluetooth = new MiMTalkBluetooth(deviceCache);
 
-            try {
-                synchronized(lock){
-                    lock.wait();
+                if(miMTalkBluetooth.connect(address)) {
+                    System.out.println("Connected to SCK 300 unit " + address + " in " +
+                            (System.currentTimeMillis() - start) + " ms");
+                    units.add(miMTalkBluetooth);
+                } else {
+                    System.out.println("Unable to connect to " + address);
                 }
             }
-            catch (InterruptedException e) {
-                e.printStackTrace();
-            }
 
-            if(connectionURL == null){
-                System.out.println("Device does not support Simple SPP Service.");
-                System.exit(0);
-            } else {
-                if(miMTalkBluetooth.connectToSCK()) {
-                    System.out.println("Connected to SCK 300 unit");
-                }
+            for(MiMTalkBluetooth miMTalkBluetooth: units) {
+                miMTalkBluetooth.close();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+
+        System.exit(0);
     }
 }
\ No newline at end of file
@@ -1,10 +1,8 @@
 package org.instras.sck;
 
-import gnu.io.NRSerialPort;
-
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created with IntelliJ IDEA.
@@ -18,18 +16,21 @@ import java.io.IOException;
 public class MiMTalkLight {
     public boolean testMode = false;
 
-    private NRSerialPort serial;
-
-    private DataInputStream ins;
+    private SCKTransport transport;
 
-    private DataOutputStream outs;
+    private CommandPipeline pipeline;
 
     public final int RESPONSE_DELAY_MS = 200; // The response delay in milliseconds
 
-    private boolean runRamp = false; // used to breakout of the run ramp program
+    private int responseTimeout = 1000; // max time in milliseconds to wait for a response line
+
+    private int bootTimeout = 3000; // max time in milliseconds to wait for the board to boot and send its mode banner
+
+    // runs the acceleration ramps
+    private final RampScheduler rampScheduler = new RampScheduler(speed -> sendCommand("SetRPM," + speed));
 
     /**
-     * Used for testing the API
+     * Used for testing the API. In test mode connect uses the in-JVM MiM simulator instead of the serial port
      * @param test
      */
     public void setTestMode(boolean test) {
@@ -39,21 +40,23 @@ public class MiMTalkLight {
     /**
      * Method to connect to the serial port
      *
-     * @param portName
+     * @param portName the serial port, or a btspp:// or tcp:// address
      */
-    public void connect(String portName) {
-        if(testMode) return;
-
-        serial = new NRSerialPort(portName, 19200);
-        serial.connect();
+    public void connect(String portName) throws IOException {
+        if(testMode) {
+            transport = new MiMSimulator();
+        } else {
+            transport = SCKTransport.create(portName, 19200);
+        }
 
-        ins = new DataInputStream(serial.getInputStream());
-        outs = new DataOutputStream(serial.getOutputStream());
+        pipeline = new CommandPipeline(transport, LineFrameCodec.MIM_TERMINATOR);
+        transport.open();
 
-        // set to TIC Mode
+        // set to MIM Mode. Wait for the banner instead of a fixed delay, since only some boards reset on open
         try {
-            Thread.sleep(2000);
-            sendCommand("y");
+            if(pipeline.handshake("y", "MIM SCK-300[P] MODE", "GetVersion", bootTimeout) == null) {
+                System.out.println("No MIM mode banner. Check the connection ...");
+            }
         } catch(InterruptedException e) {}
     }
 
@@ -74,14 +77,11 @@ public class MiMTalkLight {
      * @param wfr wait for response
      * @return
      */
-    public synchronized String sendCommand(String command, boolean wfr) {
-        if(testMode) return "OK";
-
+    public String sendCommand(String command, boolean wfr) {
         try {
-            command += "\r\n";
-            outs.writeBytes(command);
+            Future<String> response = pipeline.submit(command, true);
             if(wfr) {
-                return readResponse();
+                return response.get(responseTimeout, TimeUnit.MILLISECONDS);
             } else {
                 return "";
             }
@@ -89,38 +89,24 @@ public class MiMTalkLight {
             //e.printStackTrace();
             System.out.println("COMM/IO Error. Ignore ...");
             return null;
+        } catch (Exception e) {
+            // no response before the timeout
+            return "";
         }
     }
 
     /**
-     * Method to read the results after a command has been sent
+     * Method to read the response to the oldest command still in flight
      *
      * @return
      */
     public String readResponse() {
         try {
-            // wait 0.n00 second so data can arrive from MiM
-            Thread.sleep(RESPONSE_DELAY_MS);
-            if(testMode) return "TESTMODE,0:TT";
-
-            StringBuilder sb = new StringBuilder(); //ins.readUTF();
-            byte[] buffer = new byte[128];
-            int len = -1;
-
-            while ((len = ins.read(buffer)) > 0 ) {
-                sb.append(new String(buffer,0,len));
-            }
-
-            String response = sb.toString().trim();
-            //System.out.println("Response: " + response);
-            return response;
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            Future<String> response = pipeline.oldestPending();
+            return (response != null) ? response.get(responseTimeout, TimeUnit.MILLISECONDS) : "";
+        } catch (Exception e) {
+            return "";
         }
-
-        return "ERROR";
     }
 
     /**
@@ -192,8 +178,6 @@ public class MiMTalkLight {
      */
     public int rampToRPM(int desiredRPM, float acceleration, int currentRPM) {
         try {
-            runRamp = true;
-
             // calculate the time to desired rpm in milliseconds
             int rpmDiff = Math.abs(desiredRPM - currentRPM);
             float timeToDesiredRPM = (rpmDiff/acceleration)*1000;
@@ -201,12 +185,7 @@ public class MiMTalkLight {
             String message = "Time to Desired RPM (ms): " + (int)timeToDesiredRPM;
             print("\n" + message);
 
-            float timeTotal = 0;
             int cps = 4; // the commands to send per second
-            int delayMS = 1000/cps - RESPONSE_DELAY_MS;
-            if(delayMS < 0) delayMS = 0;
-
-
             int step = (int)acceleration/cps;
             int startRPM;
 
@@ -217,26 +196,13 @@ public class MiMTalkLight {
                 startRPM = currentRPM;
             }
 
-            for (int i = startRPM; i <= (desiredRPM + step); i += step) {
-                // check to see if to continue running the ramp program
-                if(!runRamp) break;
-
-                int speed = i;
-                if (speed > desiredRPM) {
-                    speed = desiredRPM;
-                }
-
-                //System.out.println("Setting Speed " + speed + " index: " + i + " delay: " + delayMS);
-                sendCommand("SetRPM," + speed);
-
-                Thread.sleep(delayMS);
-                timeTotal += delayMS + RESPONSE_DELAY_MS;
-            }
+            // the setpoints follow the clock, so the round trip doesn't slow down the ramp
+            rampScheduler.setPeriod(1000/cps);
+            rampScheduler.run(Math.min(startRPM, desiredRPM), desiredRPM, acceleration, null);
 
-            message = "Time Actually Taken (ms): " + (int)timeTotal;
-            print(message + "\n");
+            print(rampScheduler.getTimingSummary() + "\n");
 
-            return (int)timeTotal/1000;
+            return (int)rampScheduler.getElapsedMS()/1000;
         } catch (InterruptedException e) {
             e.printStackTrace();
             return 0;
@@ -247,7 +213,7 @@ public class MiMTalkLight {
      * Method used to stop the ramp program
      */
     public void stopRamp() {
-        runRamp = false;
+        rampScheduler.stop();
     }
 
     /**
@@ -256,8 +222,6 @@ public class MiMTalkLight {
      * @return
      */
     public int getRPM(double roundTo) {
-        if(testMode) return -1;
-
         String response = sendCommand("GetRPM");
         int rpm = Integer.parseInt(getResponseValue(response));
 
@@ -307,16 +271,15 @@ public class MiMTalkLight {
      * Method to close the serial port
      */
     public void close() {
-        if(testMode) return;
-
+        // the bridge turns MIM mode off without replying
         try {
-            sendCommand("y");
+            pipeline.submit("y", false);
             Thread.sleep(500);
-        } catch (InterruptedException e) {
+        } catch (IOException | InterruptedException e) {
             e.printStackTrace();
         }
 
-        serial.disconnect();
+        transport.close();
     }
 
     /**
@@ -346,13 +309,13 @@ public class MiMTalkLight {
     }
 
     /**
-     * Indicate whether the serial port is connected
+     * Indicate whether the transport is connected
      *
      * @return
      */
     public boolean isConnected() {
-        if(serial != null) {
-            return serial.isConnected();
+        if(transport != null) {
+            return transport.isConnected();
         }
         return false;
     }
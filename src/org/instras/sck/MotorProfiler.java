@@ -0,0 +1,447 @@
+package org.instras.sck;
+
+import java.util.HashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Steps the motor through a range of pwm values and records the speed at each one, moving on as soon as the
+ * speed has settled instead of waiting a fixed time. The speed is read from a running RPMSampler. After each
+ * step the last few samples are kept in a window, and the speed counts as settled once both the standard
+ * deviation of the window and the drift given by its least squares slope are within the band, which is the
+ * larger of the min band and a percentage of the mean speed. The slope test catches the motor still creeping up
+ * to speed, which on its own looks steady, and the variance test catches a noisy reading. If the speed doesn't
+ * settle before the timeout the mean of the last window is used, and the point is marked as not settled.
+ *
+ * The settling time of each point is kept along with the speed, since it shows where the motor is slow to
+ * respond, i.e. in the start-up region.
+ */
+public class MotorProfiler {
+    /**
+     * Called after each point is measured
+     */
+    public interface Listener {
+        void pointMeasured(int pwm, int rpm, long settleMS, boolean settled);
+    }
+
+    /**
+     * The points of a profile, kept in parallel arrays
+     */
+    public static class Profile {
+        private final int[] pwms;
+
+        private final int[] rpms;
+
+        private final double[] stdDevs;
+
+        private final long[] settleMS;
+
+        private final boolean[] settled;
+
+        private int length = 0;
+
+        private Profile(int capacity) {
+            pwms = new int[capacity];
+            rpms = new int[capacity];
+            stdDevs = new double[capacity];
+            settleMS = new long[capacity];
+            settled = new boolean[capacity];
+        }
+
+        private void add(int pwm, int rpm, double stdDev, long settleTime, boolean isSettled) {
+            pwms[length] = pwm;
+            rpms[length] = rpm;
+            stdDevs[length] = stdDev;
+            settleMS[length] = settleTime;
+            settled[length] = isSettled;
+            length++;
+        }
+
+        /**
+         * Sort the points by pwm, for a profile which was measured out of order
+         */
+        private void sort() {
+            for(int i = 1; i < length; i++) {
+                for(int j = i; j > 0 && pwms[j - 1] > pwms[j]; j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        private void swap(int a, int b) {
+            int pwm = pwms[a]; pwms[a] = pwms[b]; pwms[b] = pwm;
+            int rpm = rpms[a]; rpms[a] = rpms[b]; rpms[b] = rpm;
+            double stdDev = stdDevs[a]; stdDevs[a] = stdDevs[b]; stdDevs[b] = stdDev;
+            long settleTime = settleMS[a]; settleMS[a] = settleMS[b]; settleMS[b] = settleTime;
+            boolean isSettled = settled[a]; settled[a] = settled[b]; settled[b] = isSettled;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getPWM(int index) {
+            return pwms[index];
+        }
+
+        /**
+         * Get the settled speed of a point, the mean of the samples in the window
+         *
+         * @param index
+         * @return
+         */
+        public int getRPM(int index) {
+            return rpms[index];
+        }
+
+        /**
+         * Get the standard deviation of the samples the speed of a point came from
+         *
+         * @param index
+         * @return
+         */
+        public double getStdDev(int index) {
+            return stdDevs[index];
+        }
+
+        /**
+         * Get how long a point took to settle
+         *
+         * @param index
+         * @return the time in ms from setting the pwm, or the timeout if it didn't settle
+         */
+        public long getSettleMS(int index) {
+            return settleMS[index];
+        }
+
+        public boolean isSettled(int index) {
+            return settled[index];
+        }
+
+        /**
+         * Get the total time spent waiting for the points to settle
+         *
+         * @return the time in ms
+         */
+        public long getTotalMS() {
+            long total = 0;
+            for(int i = 0; i < length; i++) total += settleMS[i];
+            return total;
+        }
+
+        /**
+         * Get the number of points which didn't settle before the timeout
+         *
+         * @return
+         */
+        public int getUnsettledCount() {
+            int count = 0;
+            for(int i = 0; i < length; i++) if(!settled[i]) count++;
+            return count;
+        }
+
+        /**
+         * Get the profile as the map of x (pwm) and y (rpm) arrays used by LinearRegression, plus the
+         * settling times under settle
+         *
+         * @return
+         */
+        public HashMap<String, Double[]> toMap() {
+            Double[] x = new Double[length];
+            Double[] y = new Double[length];
+            Double[] settle = new Double[length];
+
+            for(int i = 0; i < length; i++) {
+                x[i] = (double)pwms[i];
+                y[i] = (double)rpms[i];
+                settle[i] = (double)settleMS[i];
+            }
+
+            HashMap<String, Double[]> motorProfileMap = new HashMap<String, Double[]>();
+            motorProfileMap.put("x", x);
+            motorProfileMap.put("y", y);
+            motorProfileMap.put("settle", settle);
+
+            return motorProfileMap;
+        }
+    }
+
+    private final IntConsumer pwmSink; // sets the pwm and returns once it's been sent
+
+    private final RPMSampler sampler;
+
+    private int windowSize = 8; // samples in the settling window
+
+    private int minDwellMS = 250; // time after setting the pwm before samples count, so a lagging reading isn't taken as settled
+
+    private int timeoutMS = 3000;
+
+    private double minBandRPM = 10;
+
+    private double bandPercent = 0.5; // band as a percentage of the mean speed
+
+    private volatile boolean running = false;
+
+    // state of the profile being measured
+    private RPMSampler.Cursor cursor;
+
+    private OnlineRegression window; // fit of the speed against time over the last few samples
+
+    private final long[] times = new long[256];
+
+    private final int[] rpms = new int[256];
+
+    /**
+     * Create a profiler
+     *
+     * @param pwmSink sets the pwm
+     * @param sampler the running sampler reading the motor speed. It should sample at a fixed period, or the
+     *                window takes longer to fill once the speed is steady
+     */
+    public MotorProfiler(IntConsumer pwmSink, RPMSampler sampler) {
+        this.pwmSink = pwmSink;
+        this.sampler = sampler;
+    }
+
+    /**
+     * Set the number of samples the settling test looks at
+     *
+     * @param windowSize
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = Math.max(3, windowSize);
+    }
+
+    /**
+     * Set the time after setting the pwm before the samples count towards the window
+     *
+     * @param minDwellMS
+     */
+    public void setMinDwell(int minDwellMS) {
+        this.minDwellMS = minDwellMS;
+    }
+
+    /**
+     * Set the longest time to wait for a point to settle
+     *
+     * @param timeoutMS
+     */
+    public void setTimeout(int timeoutMS) {
+        this.timeoutMS = timeoutMS;
+    }
+
+    /**
+     * Set how close the speed has to stay to count as settled
+     *
+     * @param minBandRPM the band at low speed, in rpm
+     * @param bandPercent the band as a percentage of the speed, used when it's larger than the min band
+     */
+    public void setBand(double minBandRPM, double bandPercent) {
+        this.minBandRPM = minBandRPM;
+        this.bandPercent = bandPercent;
+    }
+
+    /**
+     * Step through the pwm values, waiting for the speed to settle at each one. Blocks until done or stopped
+     *
+     * @param startPWM
+     * @param endPWM the last pwm, included if the increment lands on it
+     * @param increment
+     * @param listener called after each point, or null
+     * @return the profile, which holds the points measured before a stop
+     * @throws InterruptedException
+     */
+    public Profile run(int startPWM, int endPWM, int increment, Listener listener) throws InterruptedException {
+        increment = Math.max(1, increment);
+
+        Profile profile = new Profile(Math.max(0, endPWM - startPWM)/increment + 1);
+        start();
+
+        try {
+            for(int pwm = startPWM; pwm <= endPWM && running; pwm += increment) {
+                measure(pwm, profile, listener);
+            }
+        } finally {
+            running = false;
+        }
+
+        return profile;
+    }
+
+    /**
+     * Sweep the pwm range coarsely, then refine only where the curve bends. After each pass a line is fit
+     * through each point and its two neighbours, and where the point is further than the max residual from
+     * that line, the intervals on either side of it are split at their midpoints and measured in the next pass.
+     * The linear part of the curve is left at the coarse spacing, while the start-up region gets points down to
+     * the min increment. Blocks until done or stopped
+     *
+     * @param startPWM
+     * @param endPWM always measured
+     * @param coarseIncrement the spacing of the first pass
+     * @param minIncrement intervals are not split below this spacing
+     * @param maxResidualRPM how far a point can be from the local line before its intervals are split
+     * @param listener called after each point, or null
+     * @return the profile, in pwm order, which holds the points measured before a stop
+     * @throws InterruptedException
+     */
+    public Profile runAdaptive(int startPWM, int endPWM, int coarseIncrement, int minIncrement,
+                               double maxResidualRPM, Listener listener) throws InterruptedException {
+        minIncrement = Math.max(1, minIncrement);
+        coarseIncrement = Math.max(minIncrement, coarseIncrement);
+
+        Profile profile = new Profile(Math.max(0, endPWM - startPWM)/minIncrement + 2);
+        boolean[] split = new boolean[profile.pwms.length]; // the intervals to split, by the index of their start
+        start();
+
+        try {
+            for(int pwm = startPWM; pwm <= endPWM && running; pwm += coarseIncrement) {
+                measure(pwm, profile, listener);
+            }
+
+            if(running && profile.length > 0 && profile.pwms[profile.length - 1] != endPWM) {
+                measure(endPWM, profile, listener);
+            }
+
+            while(running) {
+                profile.sort();
+
+                int n = profile.length;
+                boolean refine = false;
+
+                for(int i = 1; i < n - 1; i++) {
+                    if(localResidual(profile, i) <= maxResidualRPM) continue;
+
+                    if(profile.pwms[i] - profile.pwms[i - 1] >= 2*minIncrement) {
+                        split[i - 1] = true;
+                        refine = true;
+                    }
+
+                    if(profile.pwms[i + 1] - profile.pwms[i] >= 2*minIncrement) {
+                        split[i] = true;
+                        refine = true;
+                    }
+                }
+
+                if(!refine) break;
+
+                // measure the midpoints going up, so the motor only steps up during the pass
+                for(int i = 0; i < n - 1 && running; i++) {
+                    if(!split[i]) continue;
+
+                    split[i] = false;
+                    measure((profile.pwms[i] + profile.pwms[i + 1])/2, profile, listener);
+                }
+            }
+        } finally {
+            running = false;
+        }
+
+        profile.sort();
+        return profile;
+    }
+
+    /**
+     * Get how far a point is from the line fit through it and its two neighbours
+     *
+     * @param profile sorted by pwm
+     * @param index a point with a neighbour on each side
+     * @return the residual in rpm
+     */
+    private static double localResidual(Profile profile, int index) {
+        OnlineRegression lm = new OnlineRegression();
+
+        for(int i = index - 1; i <= index + 1; i++) {
+            lm.add(profile.pwms[i], profile.rpms[i]);
+        }
+
+        return Math.abs(profile.rpms[index] - lm.predict(profile.pwms[index]));
+    }
+
+    /**
+     * Get ready to measure a profile
+     */
+    private void start() {
+        cursor = sampler.newCursor();
+        window = new OnlineRegression(windowSize);
+        running = true;
+    }
+
+    /**
+     * Set the pwm and wait for the speed to settle, then add the point to the profile
+     *
+     * @throws InterruptedException
+     */
+    private void measure(int pwm, Profile profile, Listener listener) throws InterruptedException {
+        long start = System.nanoTime();
+        long countFrom = start + minDwellMS*1000000L;
+        long deadline = start + timeoutMS*1000000L;
+
+        pwmSink.accept(pwm);
+        sampler.speedChanging();
+
+        // skip the samples taken before the pwm was set
+        while(cursor.read(null, rpms) == rpms.length);
+
+        window.clear();
+        boolean isSettled = false;
+        double lastTime = 0;
+        long now;
+
+        while(running && (now = System.nanoTime()) < deadline) {
+            int n = cursor.read(times, rpms);
+
+            for(int i = 0; i < n; i++) {
+                if(rpms[i] < 0 || times[i] < countFrom) continue;
+
+                lastTime = (times[i] - start)/1.0e9;
+                window.add(lastTime, rpms[i]);
+            }
+
+            if(window.getCount() >= windowSize && isSettled(lastTime)) {
+                isSettled = true;
+                break;
+            }
+
+            Thread.sleep(Math.max(1, Math.min(20, (deadline - now)/1000000L)));
+        }
+
+        if(!running) return;
+
+        long settleMS = (System.nanoTime() - start)/1000000L;
+        int rpm = (window.getCount() > 0) ? (int)Math.round(window.meanY()) : sampler.getLatestRPM(0);
+        double stdDev = window.stdDevY();
+
+        profile.add(pwm, rpm, stdDev, settleMS, isSettled);
+
+        if(listener != null) {
+            listener.pointMeasured(pwm, rpm, settleMS, isSettled);
+        }
+    }
+
+    /**
+     * The settling test over a full window
+     *
+     * @param lastTime the time of the newest sample in the window, in seconds
+     * @return true if the spread and the drift of the speed are both within the band
+     */
+    private boolean isSettled(double lastTime) {
+        double band = Math.max(minBandRPM, window.meanY()*bandPercent/100.0);
+
+        if(window.stdDevY() > band) return false;
+
+        // the change of the fitted line across the window, which is twice the change from its middle
+        double drift = 2*Math.abs(window.slope()*(lastTime - window.meanX()));
+
+        return drift <= band;
+    }
+
+    /**
+     * Stop the running profile. Can be called from any thread
+     */
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+}
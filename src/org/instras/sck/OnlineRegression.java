@@ -0,0 +1,244 @@
+package org.instras.sck;
+
+/**
+ * A simple linear regression which is updated one point at a time, for fitting the speed while it streams in
+ * instead of collecting it into arrays first. It keeps the means and the sums of squared deviations, updated
+ * with Welford's method so they stay accurate when the values are large and close together, i.e. nanosecond
+ * time stamps or rpm near the top speed. Adding a point is O(1) and doesn't allocate, and the slope, intercept,
+ * R<sup>2</sup> and standard errors can be read at any time. The statistics are the same as LinearRegression
+ * gives for the same points.
+ *
+ * With a window size the regression only covers the most recent points. The points are kept in a ring of
+ * primitive arrays, and the oldest one is removed by running the update backwards as each new one is added.
+ * Removing points slowly adds rounding error, so the sums are recomputed from the window every time it has
+ * been replaced, which keeps the update O(1) on average.
+ */
+public class OnlineRegression {
+    private final double[] xs; // the points in the window, used as a ring, or null without a window
+
+    private final double[] ys;
+
+    private int head = 0; // the oldest point in the window
+
+    private int removed = 0; // points removed since the sums were last recomputed
+
+    private long n = 0;
+
+    private double meanX = 0;
+
+    private double meanY = 0;
+
+    private double sxx = 0; // sum of (x - meanX)^2
+
+    private double syy = 0; // sum of (y - meanY)^2
+
+    private double sxy = 0; // sum of (x - meanX)*(y - meanY)
+
+    /**
+     * Create a regression over all the points added
+     */
+    public OnlineRegression() {
+        xs = null;
+        ys = null;
+    }
+
+    /**
+     * Create a regression over a sliding window
+     *
+     * @param windowSize the number of most recent points to fit
+     */
+    public OnlineRegression(int windowSize) {
+        if(windowSize < 2) {
+            throw new IllegalArgumentException("window must hold at least 2 points");
+        }
+
+        xs = new double[windowSize];
+        ys = new double[windowSize];
+    }
+
+    /**
+     * Add a point, dropping the oldest one if the window is full
+     *
+     * @param x
+     * @param y
+     */
+    public void add(double x, double y) {
+        if(xs == null) {
+            update(x, y);
+            return;
+        }
+
+        if(n == xs.length) {
+            remove(xs[head], ys[head]);
+            head = (head + 1)%xs.length;
+            removed++;
+        }
+
+        int tail = (int)((head + n)%xs.length);
+        xs[tail] = x;
+        ys[tail] = y;
+
+        if(removed >= xs.length) {
+            recompute();
+        } else {
+            update(x, y);
+        }
+    }
+
+    /**
+     * Add a point to the means and sums
+     */
+    private void update(double x, double y) {
+        n++;
+        double dx = x - meanX;
+        double dy = y - meanY;
+        meanX += dx/n;
+        meanY += dy/n;
+        sxx += dx*(x - meanX);
+        syy += dy*(y - meanY);
+        sxy += dx*(y - meanY);
+    }
+
+    /**
+     * Run the update backwards to take a point out of the means and sums
+     */
+    private void remove(double x, double y) {
+        if(n == 1) {
+            n = 0;
+            meanX = meanY = sxx = syy = sxy = 0;
+            return;
+        }
+
+        double oldMeanX = meanX - (x - meanX)/(n - 1);
+        double oldMeanY = meanY - (y - meanY)/(n - 1);
+
+        sxx -= (x - oldMeanX)*(x - meanX);
+        syy -= (y - oldMeanY)*(y - meanY);
+        sxy -= (x - oldMeanX)*(y - meanY);
+
+        meanX = oldMeanX;
+        meanY = oldMeanY;
+        n--;
+    }
+
+    /**
+     * Work the means and sums out again from the points in the window, the new point included
+     */
+    private void recompute() {
+        long count = n + 1;
+
+        n = 0;
+        meanX = meanY = sxx = syy = sxy = 0;
+        removed = 0;
+
+        for(int i = 0; i < count; i++) {
+            int idx = (head + i)%xs.length;
+            update(xs[idx], ys[idx]);
+        }
+    }
+
+    /**
+     * Remove all the points
+     */
+    public void clear() {
+        n = 0;
+        head = 0;
+        removed = 0;
+        meanX = meanY = sxx = syy = sxy = 0;
+    }
+
+    /**
+     * Get the number of points being fit
+     *
+     * @return
+     */
+    public long getCount() {
+        return n;
+    }
+
+    public double meanX() {
+        return meanX;
+    }
+
+    public double meanY() {
+        return meanY;
+    }
+
+    /**
+     * Get the sample standard deviation of the y values
+     *
+     * @return
+     */
+    public double stdDevY() {
+        return (n > 1) ? Math.sqrt(Math.max(0, syy)/(n - 1)) : 0;
+    }
+
+    /**
+     * Get the slope of the best fit line
+     *
+     * @return the slope, or 0 with fewer than 2 distinct x values
+     */
+    public double slope() {
+        return (sxx > 0) ? sxy/sxx : 0;
+    }
+
+    /**
+     * Get the y-intercept of the best fit line
+     *
+     * @return
+     */
+    public double intercept() {
+        return meanY - slope()*meanX;
+    }
+
+    /**
+     * Get the coefficient of determination
+     *
+     * @return R<sup>2</sup>, between 0 and 1
+     */
+    public double R2() {
+        return sxy*sxy/(sxx*syy);
+    }
+
+    /**
+     * Get the standard error of the slope
+     *
+     * @return
+     */
+    public double slopeStdErr() {
+        return Math.sqrt(residualVariance()/sxx);
+    }
+
+    /**
+     * Get the standard error of the intercept
+     *
+     * @return
+     */
+    public double interceptStdErr() {
+        double svar = residualVariance();
+        return Math.sqrt(svar/n + meanX*meanX*svar/sxx);
+    }
+
+    /**
+     * The residual sum of squares over the degrees of freedom
+     */
+    private double residualVariance() {
+        double rss = Math.max(0, syy - sxy*sxy/sxx);
+        return rss/(n - 2);
+    }
+
+    /**
+     * Get the y value of the best fit line at an x value
+     *
+     * @param x
+     * @return
+     */
+    public double predict(double x) {
+        return meanY + slope()*(x - meanX);
+    }
+
+    public String toString() {
+        return String.format("%.2f n + %.2f", slope(), intercept()) + "  (R^2 = " +
+                String.format("%.3f", R2()) + ")  n = " + n;
+    }
+}
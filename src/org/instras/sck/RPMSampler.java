@@ -0,0 +1,404 @@
+package org.instras.sck;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntSupplier;
+
+/**
+ * Background service which polls the motor speed at a fixed rate, or as fast as the link allows, and keeps the
+ * samples in preallocated ring buffers of primitive timestamps and rpm values, so nothing is boxed.
+ *
+ * There is a single writer, the sampler thread, and any number of readers. The writer claims a slot, fills it
+ * in and then publishes it by advancing the sequence number, so readers never take a lock and never stall the
+ * sampler. A reader copies the samples it wants, then checks the claimed count and throws away any samples the
+ * writer overwrote while they were being copied, so the window it gets back is always consistent. The buffers
+ * are atomic arrays so these checks hold under the Java memory model and not just on x86.
+ */
+public class RPMSampler {
+    private final IntSupplier rpmSource;
+
+    private final AtomicLongArray times; // System.nanoTime() of each sample
+
+    private final AtomicIntegerArray rpms;
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final AtomicLong claimed = new AtomicLong(); // the number of slots the writer has started writing
+
+    private final AtomicLong sequence = new AtomicLong(); // the number of samples written so far
+
+    private volatile long periodNanos;
+
+    // adaptive sampling, which backs off to the max period while the speed is steady
+    private volatile boolean adaptive = false;
+
+    private volatile long maxPeriodNanos;
+
+    private volatile int steadyBand; // the most the rpm can move between samples and still be steady
+
+    private volatile long currentPeriodNanos;
+
+    private volatile boolean speedChanging = false; // set when a new speed is commanded, to sample straight away
+
+    private static final int STEADY_SAMPLES = 5; // steady samples in a row before the period is doubled
+
+    private volatile long failedReads = 0;
+
+    private volatile boolean running = false;
+
+    private volatile Thread samplerThread;
+
+    private volatile RunRecorder recorder; // records each sample if set
+
+    /**
+     * Create a sampler which reads the speed from the MiM board, using GetRPM for the BLDC motor and
+     * GetFreq for the stepper motor
+     *
+     * @param miMTalk
+     * @param capacity the number of samples to keep
+     */
+    public RPMSampler(final MiMTalk miMTalk, int capacity) {
+        this(() -> miMTalk.getRPM(0), capacity);
+    }
+
+    /**
+     * Create a sampler which reads the speed from the Tic bridge
+     *
+     * @param ticTalk
+     * @param capacity the number of samples to keep
+     */
+    public RPMSampler(final TicTalk ticTalk, int capacity) {
+        this(() -> ticTalk.getRPM(0), capacity);
+    }
+
+    /**
+     * Create a sampler
+     *
+     * @param rpmSource reads the current rpm, returning a negative value if there was no valid response
+     * @param capacity the number of samples to keep, rounded up to a power of two
+     */
+    public RPMSampler(IntSupplier rpmSource, int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        this.rpmSource = rpmSource;
+        this.times = new AtomicLongArray(size);
+        this.rpms = new AtomicIntegerArray(size);
+        this.capacity = size;
+        this.mask = size - 1;
+    }
+
+    /**
+     * Set the time between samples
+     *
+     * @param periodMS the period in milliseconds, or 0 to sample as fast as the link allows
+     */
+    public void setSamplePeriod(double periodMS) {
+        this.periodNanos = (long)(periodMS*1000000);
+        this.currentPeriodNanos = periodNanos;
+    }
+
+    /**
+     * Sample at the set period while the speed is changing, i.e. during a ramp or after a new speed is set, and
+     * back off to the max period while it's steady, which frees the link for commands or other units
+     *
+     * @param maxPeriodMS the longest time between samples while the speed is steady
+     * @param steadyBandRPM the most the rpm can move between samples and still count as steady
+     */
+    public void setAdaptivePeriod(double maxPeriodMS, int steadyBandRPM) {
+        this.maxPeriodNanos = (long)(maxPeriodMS*1000000);
+        this.steadyBand = steadyBandRPM;
+        this.currentPeriodNanos = periodNanos;
+        this.adaptive = true;
+    }
+
+    /**
+     * Tell the sampler a new speed was commanded, so it goes back to the fast rate and takes a sample now
+     */
+    public void speedChanging() {
+        if(!adaptive) return;
+
+        speedChanging = true;
+
+        Thread thread = samplerThread;
+        if(thread != null) LockSupport.unpark(thread);
+    }
+
+    /**
+     * Get the time between samples the sampler is using now
+     *
+     * @return the period in milliseconds
+     */
+    public double getCurrentPeriodMS() {
+        return (adaptive ? currentPeriodNanos : periodNanos)/1000000.0;
+    }
+
+    /**
+     * Set the recorder which each sample is written to
+     *
+     * @param recorder the recorder, or null to stop recording
+     */
+    public void setRecorder(RunRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Start the sampler thread
+     */
+    public synchronized void start() {
+        if(running) return;
+        running = true;
+
+        samplerThread = new Thread("RPM Sampler") {
+            public void run() {
+                sample();
+            }
+        };
+
+        samplerThread.setDaemon(true);
+        samplerThread.start();
+    }
+
+    /**
+     * Stop the sampler thread. The samples already taken can still be read
+     */
+    public synchronized void stop() {
+        running = false;
+
+        if(samplerThread != null) {
+            LockSupport.unpark(samplerThread);
+            samplerThread = null;
+        }
+    }
+
+    /**
+     * Indicate if the sampler is running
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * The sampler loop. Each sample is scheduled from the start time rather than the end of the previous
+     * sample, so a slow response doesn't shift all the later samples
+     */
+    private void sample() {
+        long nextSample = System.nanoTime();
+        int lastRPM = -1;
+        int steadyCount = 0;
+
+        while(running) {
+            speedChanging = false;
+
+            int rpm = rpmSource.getAsInt();
+            long now = System.nanoTime();
+
+            if(rpm >= 0) {
+                long seq = sequence.get();
+                int slot = (int)seq & mask;
+
+                // claim the slot first so readers know its old value is being overwritten
+                claimed.set(seq + 1);
+                times.set(slot, now);
+                rpms.set(slot, rpm);
+                sequence.set(seq + 1);
+
+                RunRecorder runRecorder = recorder;
+                if(runRecorder != null) runRecorder.recordSample(now, rpm);
+            } else {
+                failedReads++;
+            }
+
+            long period = periodNanos;
+            if(adaptive && rpm >= 0) {
+                if(lastRPM < 0 || Math.abs(rpm - lastRPM) > steadyBand) {
+                    currentPeriodNanos = period;
+                    steadyCount = 0;
+                } else if(++steadyCount >= STEADY_SAMPLES) {
+                    currentPeriodNanos = Math.min(Math.max(currentPeriodNanos, 1000000L)*2, maxPeriodNanos);
+                    steadyCount = 0;
+                }
+
+                lastRPM = rpm;
+                period = currentPeriodNanos;
+            }
+
+            if(period > 0) {
+                nextSample += period;
+
+                // if we fell behind, skip the missed samples instead of trying to catch up
+                if(nextSample < now) nextSample = now;
+
+                long delay;
+                while(running && !speedChanging && (delay = nextSample - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+
+                if(speedChanging) {
+                    currentPeriodNanos = periodNanos;
+                    steadyCount = 0;
+                    nextSample = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of samples written since the sampler was created
+     *
+     * @return
+     */
+    public long getSampleCount() {
+        return sequence.get();
+    }
+
+    /**
+     * Get the number of times the rpm couldn't be read
+     *
+     * @return
+     */
+    public long getFailedReads() {
+        return failedReads;
+    }
+
+    /**
+     * Get the number of samples the ring buffers hold
+     *
+     * @return
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the most recent rpm
+     *
+     * @param roundTo round the rpm to a multiple of this value, or 0 for no rounding
+     * @return the rpm or -1 if there are no samples yet
+     */
+    public int getLatestRPM(double roundTo) {
+        while(true) {
+            long seq = sequence.get();
+            if(seq == 0) return -1;
+
+            int rpm = rpms.get((int)(seq - 1) & mask);
+
+            // make sure the writer didn't lap us while reading
+            if(claimed.get() - (seq - 1) <= capacity) {
+                if(roundTo > 0) {
+                    rpm = (int) (Math.round(rpm/roundTo) * roundTo);
+                }
+
+                return rpm;
+            }
+        }
+    }
+
+    /**
+     * Copy the most recent samples, oldest first
+     *
+     * @param timesOut receives the System.nanoTime() of each sample, can be null
+     * @param rpmsOut receives the rpm values
+     * @return the number of samples copied, at most the length of rpmsOut
+     */
+    public int readLatest(long[] timesOut, int[] rpmsOut) {
+        long end = sequence.get();
+        long start = Math.max(0, end - Math.min(rpmsOut.length, capacity));
+
+        return read(start, end, timesOut, rpmsOut, 0);
+    }
+
+    /**
+     * Copy the samples in a range of sequence numbers, dropping any at the start which the writer has
+     * overwritten in the meantime
+     *
+     * @return the number of samples copied
+     */
+    private int read(long start, long end, long[] timesOut, int[] rpmsOut, int offset) {
+        for(long seq = start; seq < end; seq++) {
+            int slot = (int)seq & mask;
+            int i = offset + (int)(seq - start);
+
+            if(timesOut != null) timesOut[i] = times.get(slot);
+            rpmsOut[i] = rpms.get(slot);
+        }
+
+        // the slots the writer claimed while we were copying may hold newer samples
+        long oldestValid = claimed.get() - capacity;
+        if(oldestValid <= start) {
+            return (int)(end - start);
+        }
+
+        int dropped = (int)Math.min(oldestValid - start, end - start);
+        int count = (int)(end - start) - dropped;
+
+        if(count > 0) {
+            if(timesOut != null) System.arraycopy(timesOut, offset + dropped, timesOut, offset, count);
+            System.arraycopy(rpmsOut, offset + dropped, rpmsOut, offset, count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Create a cursor for reading every new sample in order, i.e. for a logger
+     *
+     * @return a cursor positioned at the next sample to be written
+     */
+    public Cursor newCursor() {
+        return new Cursor(sequence.get());
+    }
+
+    /**
+     * Reads the samples in order, keeping track of where it left off. Each reader needs its own cursor
+     */
+    public class Cursor {
+        private long next;
+
+        private long missed = 0;
+
+        private Cursor(long next) {
+            this.next = next;
+        }
+
+        /**
+         * Copy the samples written since the last read
+         *
+         * @param timesOut receives the System.nanoTime() of each sample, can be null
+         * @param rpmsOut receives the rpm values
+         * @return the number of samples copied, at most the length of rpmsOut
+         */
+        public int read(long[] timesOut, int[] rpmsOut) {
+            long end = sequence.get();
+
+            // samples which have already been overwritten are lost to this reader
+            long oldest = end - capacity;
+            if(next < oldest) {
+                missed += oldest - next;
+                next = oldest;
+            }
+
+            end = Math.min(end, next + rpmsOut.length);
+            int count = RPMSampler.this.read(next, end, timesOut, rpmsOut, 0);
+
+            missed += (end - next) - count;
+            next = end;
+
+            return count;
+        }
+
+        /**
+         * Get the number of samples which were overwritten before this cursor read them
+         *
+         * @return
+         */
+        public long getMissed() {
+            return missed;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.instras.sck;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+/**
+ * Ramps the motor to a new speed, driven by the monotonic clock instead of by counting steps. The ramp is a
+ * Trajectory compiled ahead of time, and each of its setpoints has a deadline measured from the start of the
+ * ramp, so the command round trip and any UI work done in between don't slow the ramp down. If a setpoint takes
+ * longer than the period, the setpoints it overran are skipped instead of being made up with a burst of
+ * commands. The last setpoint lands on the time the ramp should end.
+ *
+ * The timing of the last ramp, i.e. how long it really took and how many deadlines were missed, can be read back
+ * once it's done.
+ */
+public class RampScheduler {
+    /**
+     * Called after each setpoint is sent
+     */
+    public interface Listener {
+        void setpointSent(int rpm, long elapsedMS);
+    }
+
+    private final IntConsumer setpointSink;
+
+    private volatile long periodNanos = 250*1000000L;
+
+    private volatile boolean running = false;
+
+    // timing of the last ramp
+    private volatile long plannedNanos;
+
+    private volatile long elapsedNanos;
+
+    private volatile int setpointCount;
+
+    private volatile int missedCount;
+
+    private volatile long maxLateNanos;
+
+    /**
+     * Create a scheduler
+     *
+     * @param setpointSink sends each speed to the motor and returns once it's been sent
+     */
+    public RampScheduler(IntConsumer setpointSink) {
+        this.setpointSink = setpointSink;
+    }
+
+    /**
+     * Set the time between setpoints
+     *
+     * @param periodMS
+     */
+    public void setPeriod(int periodMS) {
+        this.periodNanos = Math.max(1, periodMS)*1000000L;
+    }
+
+    /**
+     * Ramp from one speed to another at a constant acceleration. Blocks until the ramp is done or stopped
+     *
+     * @param startRPM the speed to start the ramp at, which is sent straight away
+     * @param targetRPM
+     * @param acceleration in rpm per second
+     * @param listener called after each setpoint, or null
+     * @return true if the target was reached, false if the ramp was stopped
+     * @throws InterruptedException
+     */
+    public boolean run(int startRPM, int targetRPM, float acceleration, Listener listener) throws InterruptedException {
+        return run(Trajectory.trapezoid(startRPM, targetRPM, acceleration, 1.0e9/periodNanos), listener);
+    }
+
+    /**
+     * Run a compiled trajectory, sending each setpoint at its time. Blocks until the ramp is done or stopped
+     *
+     * @param trajectory
+     * @param listener called after each setpoint, or null
+     * @return true if the end speed was reached, false if the ramp was stopped
+     * @throws InterruptedException
+     */
+    public boolean run(Trajectory trajectory, Listener listener) throws InterruptedException {
+        running = true;
+        setpointCount = 0;
+        missedCount = 0;
+        maxLateNanos = 0;
+        plannedNanos = trajectory.getDuration();
+
+        int last = trajectory.getLength() - 1;
+        int sent = -1;
+        long startTime = System.nanoTime();
+        long deadline = startTime;
+
+        try {
+            while(running) {
+                long now = System.nanoTime();
+                maxLateNanos = Math.max(maxLateNanos, now - deadline);
+
+                // skip the setpoints whose time went by while the last one was being sent
+                int index = Math.max(trajectory.indexAt(now - startTime), sent + 1);
+                missedCount += index - sent - 1;
+
+                int rpm = trajectory.getRPM(index);
+                setpointSink.accept(rpm);
+                setpointCount++;
+                sent = index;
+
+                if(listener != null) {
+                    listener.setpointSent(rpm, (System.nanoTime() - startTime)/1000000L);
+                }
+
+                if(sent == last) break;
+
+                deadline = startTime + trajectory.getTime(sent + 1);
+                parkUntil(deadline);
+            }
+        } finally {
+            elapsedNanos = System.nanoTime() - startTime;
+            running = false;
+        }
+
+        return sent == last;
+    }
+
+    /**
+     * Sleep until the deadline
+     *
+     * @param deadline the System.nanoTime() to wake up at
+     * @throws InterruptedException
+     */
+    private void parkUntil(long deadline) throws InterruptedException {
+        long remaining;
+
+        while(running && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Stop the running ramp. Can be called from any thread
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Indicate if a ramp is running
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Get the time the last ramp should have taken at its acceleration
+     *
+     * @return
+     */
+    public long getPlannedMS() {
+        return plannedNanos/1000000L;
+    }
+
+    /**
+     * Get the time the last ramp really took, from the first to the last setpoint
+     *
+     * @return
+     */
+    public long getElapsedMS() {
+        return elapsedNanos/1000000L;
+    }
+
+    /**
+     * Get the number of setpoints sent in the last ramp
+     *
+     * @return
+     */
+    public int getSetpointCount() {
+        return setpointCount;
+    }
+
+    /**
+     * Get the number of deadlines skipped in the last ramp because a setpoint took longer than the period
+     *
+     * @return
+     */
+    public int getMissedCount() {
+        return missedCount;
+    }
+
+    /**
+     * Get the most a setpoint was sent after its deadline in the last ramp
+     *
+     * @return
+     */
+    public long getMaxLateMS() {
+        return maxLateNanos/1000000L;
+    }
+
+    /**
+     * Get a one line summary of the timing of the last ramp
+     *
+     * @return
+     */
+    public String getTimingSummary() {
+        return "Planned (ms): " + getPlannedMS() + ", Actual (ms): " + getElapsedMS() + ", Setpoints: " +
+                setpointCount + ", Missed Deadlines: " + missedCount + ", Max Late (ms): " + getMaxLateMS();
+    }
+}
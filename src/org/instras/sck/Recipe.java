@@ -0,0 +1,374 @@
+package org.instras.sck;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A ramp step sequence compiled once into a compact plan, which is then used to check the sequence, estimate how
+ * long it takes and run it. The text format is the one in the ramp sequence text area, a header line followed by
+ * one step per line, with optional settings after the dwell time:
+ *
+ * <pre>
+ * Step, Speed (rpm), Dwell Time (s)
+ * 1, 500, 30
+ * 2, 1400, 40, acc=300, dir=ccw
+ * loop 3
+ * 3, 3200, 60, stable=20
+ * 4, 1500, 10
+ * end
+ * </pre>
+ *
+ * acc is the acceleration to ramp to the step at in rpm per second, dir sets the direction (cw or ccw) before the
+ * ramp, and stable waits until the speed is within that many rpm of the step speed before the dwell time starts.
+ * loop N repeats the steps up to the matching end N times, and lines starting with # are comments. A comment
+ * starting with # tags: lists the tags used to find the recipe in the RecipeLibrary, separated by commas.
+ *
+ * The plan is kept in parallel primitive arrays, one entry per step, loop or end, so a recipe takes little
+ * memory and running it doesn't create any objects.
+ */
+public class Recipe {
+    public static final byte OP_STEP = 0;
+    public static final byte OP_LOOP = 1;
+    public static final byte OP_END = 2;
+
+    public static final byte DIR_KEEP = 0;
+    public static final byte DIR_CW = 1;
+    public static final byte DIR_CCW = 2;
+
+    public static final int STABLE_TIMEOUT_S = 60; // max time to wait for the speed to settle on a stable step
+
+    private final String name;
+
+    private final String[] tags;
+
+    private final int length;
+
+    private final byte[] ops;
+
+    private final String[] labels; // the step name from the first column
+
+    private final int[] speeds;
+
+    private final int[] dwells; // in seconds
+
+    private final int[] accelerations; // in rpm per second, 0 to use the default
+
+    private final byte[] directions;
+
+    private final int[] stableBands; // in rpm, 0 to not wait
+
+    private final int[] jumps; // for a loop the repeat count, for an end the index of its loop
+
+    private Recipe(String name, String[] tags, int length, byte[] ops, String[] labels, int[] speeds, int[] dwells,
+                   int[] accelerations, byte[] directions, int[] stableBands, int[] jumps) {
+        this.name = name;
+        this.tags = tags;
+        this.length = length;
+        this.ops = ops;
+        this.labels = labels;
+        this.speeds = speeds;
+        this.dwells = dwells;
+        this.accelerations = accelerations;
+        this.directions = directions;
+        this.stableBands = stableBands;
+        this.jumps = jumps;
+    }
+
+    /**
+     * Compile a recipe from its text. The first line is the header
+     *
+     * @param name the recipe name, i.e. the file name
+     * @param text
+     * @return the compiled recipe
+     * @throws IllegalArgumentException naming the step or line which has an error
+     */
+    public static Recipe parse(String name, String text) {
+        String[] lines = text.split("\n");
+        int max = Math.max(lines.length, 1);
+
+        byte[] ops = new byte[max];
+        String[] labels = new String[max];
+        int[] speeds = new int[max];
+        int[] dwells = new int[max];
+        int[] accelerations = new int[max];
+        byte[] directions = new byte[max];
+        int[] stableBands = new int[max];
+        int[] jumps = new int[max];
+
+        List<String> tags = new ArrayList<String>();
+        int[] openLoops = new int[max];
+        int depth = 0;
+        int length = 0;
+
+        for(int i = 1; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if(line.isEmpty()) continue;
+
+            if(line.startsWith("#")) {
+                String comment = line.substring(1).trim();
+
+                if(comment.toLowerCase().startsWith("tags:")) {
+                    for(String tag: comment.substring(5).split(",")) {
+                        if(!tag.trim().isEmpty()) tags.add(tag.trim().toLowerCase());
+                    }
+                }
+
+                continue;
+            }
+
+            String lower = line.toLowerCase();
+
+            if(lower.startsWith("loop")) {
+                try {
+                    jumps[length] = Integer.parseInt(line.substring(4).trim());
+                } catch(NumberFormatException nfe) {
+                    throw new IllegalArgumentException("Invalid loop count on line " + (i + 1));
+                }
+
+                if(jumps[length] < 1) {
+                    throw new IllegalArgumentException("Invalid loop count on line " + (i + 1));
+                }
+
+                ops[length] = OP_LOOP;
+                openLoops[depth++] = length;
+                length++;
+            } else if(lower.equals("end")) {
+                if(depth == 0) {
+                    throw new IllegalArgumentException("End without a loop on line " + (i + 1));
+                }
+
+                ops[length] = OP_END;
+                jumps[length] = openLoops[--depth];
+                length++;
+            } else {
+                parseStep(line, length, labels, speeds, dwells, accelerations, directions, stableBands);
+                ops[length] = OP_STEP;
+                length++;
+            }
+        }
+
+        if(depth > 0) {
+            throw new IllegalArgumentException("Loop without an end in recipe " + name);
+        }
+
+        return new Recipe(name, tags.toArray(new String[tags.size()]), length, Arrays.copyOf(ops, length), Arrays.copyOf(labels, length),
+                Arrays.copyOf(speeds, length), Arrays.copyOf(dwells, length), Arrays.copyOf(accelerations, length),
+                Arrays.copyOf(directions, length), Arrays.copyOf(stableBands, length), Arrays.copyOf(jumps, length));
+    }
+
+    /**
+     * Parse a step line into the plan arrays
+     */
+    private static void parseStep(String line, int index, String[] labels, int[] speeds, int[] dwells,
+                                  int[] accelerations, byte[] directions, int[] stableBands) {
+        String[] stepInfo = line.split("\\s*,\\s*");
+        String step = stepInfo[0];
+
+        try {
+            labels[index] = step;
+            speeds[index] = Integer.parseInt(stepInfo[1]);
+            dwells[index] = Integer.parseInt(stepInfo[2]);
+
+            for(int i = 3; i < stepInfo.length; i++) {
+                int idx = stepInfo[i].indexOf('=');
+                String key = stepInfo[i].substring(0, idx).trim().toLowerCase();
+                String value = stepInfo[i].substring(idx + 1).trim();
+
+                if(key.equals("acc")) {
+                    accelerations[index] = Integer.parseInt(value);
+                } else if(key.equals("stable")) {
+                    stableBands[index] = Integer.parseInt(value);
+                } else if(key.equals("dir") && value.equalsIgnoreCase("cw")) {
+                    directions[index] = DIR_CW;
+                } else if(key.equals("dir") && value.equalsIgnoreCase("ccw")) {
+                    directions[index] = DIR_CCW;
+                } else {
+                    throw new IllegalArgumentException();
+                }
+            }
+        } catch(IllegalArgumentException | IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Error in step sequence #" + step);
+        }
+
+        if(speeds[index] < 0 || dwells[index] < 0 || accelerations[index] < 0 || stableBands[index] < 0) {
+            throw new IllegalArgumentException("Error in step sequence #" + step);
+        }
+    }
+
+    /**
+     * Get the index of the first step to run
+     *
+     * @param loopCounts holds the passes left of each loop while running, at least getLength() long
+     * @return the index or -1 if there are no steps
+     */
+    public int first(int[] loopCounts) {
+        return advance(0, loopCounts);
+    }
+
+    /**
+     * Get the index of the step to run after a step, following the loops
+     *
+     * @param index the step just run
+     * @param loopCounts the same array passed to first
+     * @return the index or -1 at the end of the recipe
+     */
+    public int next(int index, int[] loopCounts) {
+        return advance(index + 1, loopCounts);
+    }
+
+    /**
+     * Move from an index to the next step, going through loops and ends
+     */
+    private int advance(int index, int[] loopCounts) {
+        while(index < length) {
+            if(ops[index] == OP_STEP) {
+                return index;
+            } else if(ops[index] == OP_LOOP) {
+                loopCounts[index] = jumps[index];
+                index++;
+            } else {
+                int loop = jumps[index];
+
+                if(--loopCounts[loop] > 0) {
+                    index = loop + 1;
+                } else {
+                    index++;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Estimate how long the recipe takes to run, from the ramp and dwell times of each step
+     *
+     * @param defaultAcceleration the acceleration used by steps which don't set one, in rpm per second
+     * @return the time in seconds
+     */
+    public double getEstimatedSeconds(int defaultAcceleration) {
+        int[] loopCounts = new int[length];
+        double seconds = 0;
+        int speed = 0;
+
+        for(int i = first(loopCounts); i >= 0; i = next(i, loopCounts)) {
+            int acceleration = getAcceleration(i, defaultAcceleration);
+            if(acceleration > 0) {
+                seconds += Math.abs(speeds[i] - speed)/(double)acceleration;
+            }
+
+            seconds += dwells[i];
+            speed = speeds[i];
+        }
+
+        return seconds;
+    }
+
+    /**
+     * Get the highest step speed
+     *
+     * @return
+     */
+    public int getMaxRPM() {
+        int max = 0;
+
+        for(int i = 0; i < length; i++) {
+            if(ops[i] == OP_STEP) max = Math.max(max, speeds[i]);
+        }
+
+        return max;
+    }
+
+    /**
+     * Get the number of steps run, counting each pass through a loop
+     *
+     * @return
+     */
+    public int getStepCount() {
+        int[] loopCounts = new int[length];
+        int count = 0;
+
+        for(int i = first(loopCounts); i >= 0; i = next(i, loopCounts)) {
+            count++;
+        }
+
+        return count;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the tags from the # tags: comments
+     *
+     * @return the tags in lower case
+     */
+    public String[] getTags() {
+        return tags.clone();
+    }
+
+    /**
+     * Get the number of entries in the plan, including the loops and ends
+     *
+     * @return
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public String getLabel(int index) {
+        return labels[index];
+    }
+
+    public int getSpeed(int index) {
+        return speeds[index];
+    }
+
+    /**
+     * Get the dwell time of a step
+     *
+     * @param index
+     * @return the time in seconds
+     */
+    public int getDwell(int index) {
+        return dwells[index];
+    }
+
+    /**
+     * Get the acceleration of a step
+     *
+     * @param index
+     * @param defaultAcceleration returned if the step doesn't set one
+     * @return the acceleration in rpm per second
+     */
+    public int getAcceleration(int index, int defaultAcceleration) {
+        return (accelerations[index] > 0) ? accelerations[index] : defaultAcceleration;
+    }
+
+    /**
+     * Get the direction a step sets
+     *
+     * @param index
+     * @return DIR_KEEP, DIR_CW or DIR_CCW
+     */
+    public byte getDirection(int index) {
+        return directions[index];
+    }
+
+    /**
+     * Get how close the speed must be to the step speed before the dwell time starts
+     *
+     * @param index
+     * @return the band in rpm, or 0 to start the dwell time once the ramp is done
+     */
+    public int getStableBand(int index) {
+        return stableBands[index];
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getStepCount() + " steps, max " + getMaxRPM() + " rpm";
+    }
+}
@@ -0,0 +1,469 @@
+package org.instras.sck;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * A directory of ramp step sequence recipes, one .txt file per recipe, with an index of the name, tags, estimated
+ * run time, max speed and last used time of each one. The index is kept in a properties file in the same
+ * directory, so searching the library doesn't need to read the recipes. When the library is refreshed only the
+ * files whose time stamp or size changed are read and parsed again.
+ *
+ * Parsed recipes and their text are kept in a small LRU cache, so loading a recipe which was used recently
+ * doesn't touch the disk beyond checking the file time stamp.
+ */
+public class RecipeLibrary {
+    public static final String DEFAULT_DIRECTORY = "recipes";
+
+    public static final String INDEX_FILENAME = "recipe_index.properties";
+
+    public static final String RECIPE_EXTENSION = ".txt";
+
+    public static final int DEFAULT_CACHE_SIZE = 32;
+
+    public static final int ESTIMATE_ACCELERATION = 500; // rpm per second used for the run time of the index
+
+    /**
+     * The index entry of one recipe
+     */
+    public static class Entry {
+        private final String name;
+
+        private final String[] tags;
+
+        private final double seconds;
+
+        private final int maxRPM;
+
+        private final long lastUsed;
+
+        private final long modified;
+
+        private final long size;
+
+        private Entry(String name, String[] tags, double seconds, int maxRPM, long lastUsed, long modified, long size) {
+            this.name = name;
+            this.tags = tags;
+            this.seconds = seconds;
+            this.maxRPM = maxRPM;
+            this.lastUsed = lastUsed;
+            this.modified = modified;
+            this.size = size;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String[] getTags() {
+            return tags.clone();
+        }
+
+        /**
+         * Get the estimated run time
+         *
+         * @return the time in seconds
+         */
+        public double getSeconds() {
+            return seconds;
+        }
+
+        public int getMaxRPM() {
+            return maxRPM;
+        }
+
+        /**
+         * Get when the recipe was last run
+         *
+         * @return the time in milliseconds or 0 if never
+         */
+        public long getLastUsed() {
+            return lastUsed;
+        }
+
+        /**
+         * Check if the name or a tag contains a search term
+         *
+         * @param term in lower case
+         * @return
+         */
+        private boolean matches(String term) {
+            if(name.toLowerCase().contains(term)) return true;
+
+            for(String tag: tags) {
+                if(tag.contains(term)) return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            long time = Math.round(seconds);
+            String tagString = (tags.length > 0) ? " [" + String.join(", ", tags) + "]" : "";
+
+            return name + tagString + ", " + time/60 + ":" + String.format("%02d", time%60) + " min, max " +
+                    maxRPM + " rpm";
+        }
+    }
+
+    /**
+     * A parsed recipe in the cache, with the time stamp of the file it was read from
+     */
+    private static class CachedRecipe {
+        private final Recipe recipe;
+
+        private final String text;
+
+        private final long modified;
+
+        private final long size;
+
+        private CachedRecipe(Recipe recipe, String text, long modified, long size) {
+            this.recipe = recipe;
+            this.text = text;
+            this.modified = modified;
+            this.size = size;
+        }
+    }
+
+    private final File directory;
+
+    private final Map<String, Entry> index = new HashMap<String, Entry>();
+
+    private final Map<String, Long> failed = new HashMap<String, Long>(); // time stamps of files which didn't parse
+
+    private final LinkedHashMap<String, CachedRecipe> cache;
+
+    /**
+     * Create a library in the default directory under the working directory
+     */
+    public RecipeLibrary() {
+        this(new File(System.getProperty("user.dir"), DEFAULT_DIRECTORY), DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Create a library. The directory is created if it doesn't exist, and the saved index is loaded
+     *
+     * @param directory
+     * @param cacheSize the number of parsed recipes to keep in memory
+     */
+    public RecipeLibrary(File directory, final int cacheSize) {
+        this.directory = directory;
+
+        // access ordered so the least recently loaded recipe is dropped first
+        cache = new LinkedHashMap<String, CachedRecipe>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedRecipe> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("Can't create recipe directory: " + directory);
+        }
+
+        loadIndex();
+    }
+
+    /**
+     * Load the saved index
+     */
+    private void loadIndex() {
+        Properties properties = new Properties();
+
+        try (FileReader fileReader = new FileReader(new File(directory, INDEX_FILENAME))) {
+            properties.load(fileReader);
+        } catch (IOException e) {
+            // no index yet, so refresh will build it
+            return;
+        }
+
+        for(String key: properties.stringPropertyNames()) {
+            if(!key.endsWith(".modified")) continue;
+
+            String name = key.substring(0, key.length() - ".modified".length());
+
+            try {
+                String tags = properties.getProperty(name + ".tags", "");
+
+                index.put(name, new Entry(name,
+                        tags.isEmpty() ? new String[0] : tags.split(","),
+                        Double.parseDouble(properties.getProperty(name + ".seconds", "0")),
+                        Integer.parseInt(properties.getProperty(name + ".maxRPM", "0")),
+                        Long.parseLong(properties.getProperty(name + ".lastUsed", "0")),
+                        Long.parseLong(properties.getProperty(name + ".modified")),
+                        Long.parseLong(properties.getProperty(name + ".size", "-1"))));
+            } catch (NumberFormatException nfe) {
+                // leave it out so it's indexed again
+            }
+        }
+    }
+
+    /**
+     * Save the index to the directory
+     */
+    private void saveIndex() {
+        Properties properties = new Properties();
+
+        for(Entry entry: index.values()) {
+            properties.setProperty(entry.name + ".tags", String.join(",", entry.tags));
+            properties.setProperty(entry.name + ".seconds", "" + entry.seconds);
+            properties.setProperty(entry.name + ".maxRPM", "" + entry.maxRPM);
+            properties.setProperty(entry.name + ".lastUsed", "" + entry.lastUsed);
+            properties.setProperty(entry.name + ".modified", "" + entry.modified);
+            properties.setProperty(entry.name + ".size", "" + entry.size);
+        }
+
+        try (FileWriter output = new FileWriter(new File(directory, INDEX_FILENAME))) {
+            properties.store(output, "SCKTalk Recipe Index");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Bring the index up to date with the directory. Only recipes which were added or changed since they were
+     * indexed are read, and the recipes which were deleted are dropped
+     *
+     * @return the number of recipes indexed again or dropped
+     */
+    public synchronized int refresh() {
+        File[] files = directory.listFiles((dir, filename) -> filename.endsWith(RECIPE_EXTENSION));
+        if(files == null) return 0;
+
+        Set<String> names = new HashSet<String>();
+        int changed = 0;
+
+        for(File file: files) {
+            String name = file.getName().substring(0, file.getName().length() - RECIPE_EXTENSION.length());
+            long modified = file.lastModified();
+            long size = file.length();
+            names.add(name);
+
+            Entry entry = index.get(name);
+            if(entry != null && entry.modified == modified && entry.size == size) continue;
+
+            Long failedModified = failed.get(name);
+            if(failedModified != null && failedModified == modified) continue;
+
+            if(read(name, file, (entry != null) ? entry.lastUsed : 0) != null) {
+                changed++;
+            }
+        }
+
+        // drop the recipes which were deleted
+        for(String name: new ArrayList<String>(index.keySet())) {
+            if(!names.contains(name)) {
+                index.remove(name);
+                cache.remove(name);
+                changed++;
+            }
+        }
+
+        failed.keySet().retainAll(names);
+
+        if(changed > 0) {
+            saveIndex();
+        }
+
+        return changed;
+    }
+
+    /**
+     * Read and parse a recipe file, and put it in the index and cache
+     *
+     * @return the cached recipe, or null if it can't be read or has an error
+     */
+    private CachedRecipe read(String name, File file, long lastUsed) {
+        long modified = file.lastModified();
+        long size = file.length();
+
+        try {
+            String text = new String(Files.readAllBytes(file.toPath()));
+            return put(name, text, modified, size, lastUsed);
+        } catch (IOException | IllegalArgumentException ex) {
+            System.out.println("Error in recipe " + name + ": " + ex.getMessage());
+
+            index.remove(name);
+            cache.remove(name);
+            failed.put(name, modified);
+
+            return null;
+        }
+    }
+
+    /**
+     * Parse a recipe and put it in the index and cache
+     */
+    private CachedRecipe put(String name, String text, long modified, long size, long lastUsed) {
+        Recipe recipe = Recipe.parse(name, text);
+        CachedRecipe cachedRecipe = new CachedRecipe(recipe, text, modified, size);
+
+        index.put(name, new Entry(name, recipe.getTags(), recipe.getEstimatedSeconds(ESTIMATE_ACCELERATION),
+                recipe.getMaxRPM(), lastUsed, modified, size));
+        cache.put(name, cachedRecipe);
+        failed.remove(name);
+
+        return cachedRecipe;
+    }
+
+    /**
+     * Get a recipe from the cache, or read it if it isn't cached or the file changed
+     *
+     * @param name
+     * @return the cached recipe or null if it doesn't exist or has an error
+     */
+    private CachedRecipe get(String name) {
+        File file = getFile(name);
+        CachedRecipe cachedRecipe = cache.get(name);
+
+        if(cachedRecipe != null && cachedRecipe.modified == file.lastModified() &&
+                cachedRecipe.size == file.length()) {
+            return cachedRecipe;
+        }
+
+        if(!file.isFile()) return null;
+
+        Entry entry = index.get(name);
+        cachedRecipe = read(name, file, (entry != null) ? entry.lastUsed : 0);
+
+        if(cachedRecipe != null && (entry == null || entry.modified != cachedRecipe.modified)) {
+            saveIndex();
+        }
+
+        return cachedRecipe;
+    }
+
+    /**
+     * Load a compiled recipe
+     *
+     * @param name
+     * @return the recipe or null if it doesn't exist or has an error
+     */
+    public synchronized Recipe load(String name) {
+        CachedRecipe cachedRecipe = get(name);
+        return (cachedRecipe != null) ? cachedRecipe.recipe : null;
+    }
+
+    /**
+     * Get the text of a recipe, i.e. to edit it
+     *
+     * @param name
+     * @return the text or null if it doesn't exist or has an error
+     */
+    public synchronized String getText(String name) {
+        CachedRecipe cachedRecipe = get(name);
+        return (cachedRecipe != null) ? cachedRecipe.text : null;
+    }
+
+    /**
+     * Save a recipe to the library, replacing any recipe with the same name
+     *
+     * @param name the recipe name, which is used as the file name
+     * @param text
+     * @return the compiled recipe
+     * @throws IllegalArgumentException if the name isn't a valid file name or the recipe has an error
+     * @throws IOException
+     */
+    public synchronized Recipe save(String name, String text) throws IOException {
+        name = name.trim();
+
+        if(name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid recipe name: " + name);
+        }
+
+        // check it before it's written over the old one
+        Recipe.parse(name, text);
+
+        File file = getFile(name);
+        Files.write(file.toPath(), text.getBytes());
+
+        Entry entry = index.get(name);
+        Recipe recipe = put(name, text, file.lastModified(), file.length(), (entry != null) ? entry.lastUsed : 0).recipe;
+        saveIndex();
+
+        return recipe;
+    }
+
+    /**
+     * Record that a recipe was run, so the most recently used recipes are listed first
+     *
+     * @param name
+     */
+    public synchronized void markUsed(String name) {
+        Entry entry = index.get(name);
+        if(entry == null) return;
+
+        index.put(name, new Entry(name, entry.tags, entry.seconds, entry.maxRPM, System.currentTimeMillis(),
+                entry.modified, entry.size));
+        saveIndex();
+    }
+
+    /**
+     * Find the recipes whose name or tags contain all the words of a query. Only the index in memory is searched,
+     * so it's fast enough to run on every keystroke. Call refresh first to pick up changes to the directory
+     *
+     * @param query words separated by spaces, or an empty string to list all the recipes
+     * @return the matching entries, the most recently used first
+     */
+    public synchronized List<Entry> search(String query) {
+        String[] terms = query.trim().toLowerCase().split("\\s+");
+        List<Entry> results = new ArrayList<Entry>();
+
+        outerloop:
+        for(Entry entry: index.values()) {
+            for(String term: terms) {
+                if(!entry.matches(term)) continue outerloop;
+            }
+
+            results.add(entry);
+        }
+
+        Collections.sort(results, (a, b) -> (a.lastUsed != b.lastUsed) ?
+                Long.compare(b.lastUsed, a.lastUsed) : a.name.compareToIgnoreCase(b.name));
+
+        return results;
+    }
+
+    /**
+     * Get the index entry of a recipe
+     *
+     * @param name
+     * @return the entry or null if the recipe isn't indexed
+     */
+    public synchronized Entry getEntry(String name) {
+        return index.get(name);
+    }
+
+    /**
+     * Get the number of indexed recipes
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Get the file a recipe is stored in
+     *
+     * @param name
+     * @return
+     */
+    public File getFile(String name) {
+        return new File(directory, name + RECIPE_EXTENSION);
+    }
+}
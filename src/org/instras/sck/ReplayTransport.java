@@ -0,0 +1,252 @@
+package org.instras.sck;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Plays back a run recorded by RunRecorder as if it were the device. Each command written by MiMTalk or TicTalk
+ * is matched to the next matching command in the recording, and the responses the device sent after that
+ * command are sent back, either with the same delays as in the recording or straight away. This makes it
+ * possible to replay production traffic through rampToRPM, the step sequences and the UI update path for
+ * regression benchmarks, or to look into a problem run without tying up a coater.
+ *
+ * Matching is deterministic: the recording is searched a limited number of commands ahead, so a command which
+ * isn't in the recording doesn't get a response and doesn't throw off the rest of the replay. Recordings start
+ * after the unit is connected, so the connect handshake is answered the way the bridge would, using the model
+ * and firmware version in the recording's header.
+ */
+public class ReplayTransport extends DeviceSimulator {
+    private final File file;
+
+    private final boolean realTime;
+
+    private int lookAhead = 16; // how many recorded commands to search for a match
+
+    // the recorded commands and the responses which followed each of them
+    private String[] commands;
+
+    private long[] commandTimes;
+
+    private int[] firstResponse; // index of the first response of each command, the next command's is the end
+
+    private String[] responses;
+
+    private long[] responseTimes;
+
+    private String model = ""; // the device model and firmware version from the header
+
+    private String firmwareVersion = "";
+
+    private boolean modeOn = false; // the bridge's MIM or TIC mode, toggled by the mode byte
+
+    private int nextCommand = 0;
+
+    private int replayed = 0;
+
+    private int unmatched = 0;
+
+    private int skipped = 0;
+
+    /**
+     * Create a replay transport
+     *
+     * @param file the run file
+     * @param realTime true to send the responses with the recorded timing, false to send them as fast as possible
+     */
+    public ReplayTransport(File file, boolean realTime) {
+        super("Replay " + file.getName(), 0L);
+        this.file = file;
+        this.realTime = realTime;
+    }
+
+    /**
+     * Set how far ahead in the recording to look for a command
+     *
+     * @param lookAhead the number of recorded commands
+     */
+    public synchronized void setLookAhead(int lookAhead) {
+        this.lookAhead = lookAhead;
+    }
+
+    /**
+     * Load the recording then start the replay
+     *
+     * @throws IOException if the run file can't be read
+     */
+    @Override
+    public void open() throws IOException {
+        load();
+        super.open();
+    }
+
+    /**
+     * Read the commands and responses from the run file
+     *
+     * @throws IOException
+     */
+    private synchronized void load() throws IOException {
+        ArrayList<String> commandList = new ArrayList<String>();
+        ArrayList<Long> commandTimeList = new ArrayList<Long>();
+        ArrayList<Integer> firstResponseList = new ArrayList<Integer>();
+        ArrayList<String> responseList = new ArrayList<String>();
+        ArrayList<Long> responseTimeList = new ArrayList<Long>();
+
+        try (RunRecorder.Reader reader = new RunRecorder.Reader(file)) {
+            RunRecorder.Record record = new RunRecorder.Record();
+            model = reader.model;
+            firmwareVersion = reader.firmwareVersion;
+
+            while(reader.next(record)) {
+                if(record.type == RunRecorder.COMMAND) {
+                    commandList.add(record.text);
+                    commandTimeList.add(record.time);
+                    firstResponseList.add(responseList.size());
+                } else if(record.type == RunRecorder.RESPONSE && !commandList.isEmpty()) {
+                    responseList.add(record.text + LineFrameCodec.MIM_TERMINATOR);
+                    responseTimeList.add(record.time);
+                }
+            }
+        }
+
+        int count = commandList.size();
+        commands = commandList.toArray(new String[count]);
+        commandTimes = new long[count];
+        firstResponse = new int[count + 1];
+
+        for(int i = 0; i < count; i++) {
+            commandTimes[i] = commandTimeList.get(i);
+            firstResponse[i] = firstResponseList.get(i);
+        }
+        firstResponse[count] = responseList.size();
+
+        responses = responseList.toArray(new String[responseList.size()]);
+        responseTimes = new long[responses.length];
+        for(int i = 0; i < responses.length; i++) {
+            responseTimes[i] = responseTimeList.get(i);
+        }
+
+        modeOn = false;
+        nextCommand = 0;
+        replayed = 0;
+        unmatched = 0;
+        skipped = 0;
+    }
+
+    /**
+     * Find the command in the recording and send back the responses recorded after it
+     *
+     * @param command
+     * @return the response to a handshake command, otherwise null since the responses are queued with their
+     * own delays
+     */
+    @Override
+    protected String processCommand(String command) {
+        int index = findCommand(command);
+
+        if(index < 0) {
+            String response = answerHandshake(command);
+            if(response == null) unmatched++;
+
+            return response;
+        }
+
+        skipped += index - nextCommand;
+        nextCommand = index + 1;
+        replayed++;
+
+        for(int i = firstResponse[index]; i < firstResponse[index + 1]; i++) {
+            long delay = realTime ? responseTimes[i] - commandTimes[index] : 0;
+            queueResponse(responses[i], delay);
+        }
+
+        return null;
+    }
+
+    /**
+     * Answer the commands sent when connecting, which come before the recording starts
+     *
+     * @param command
+     * @return the response, or null if it's not a handshake command or the bridge doesn't reply to it
+     */
+    private String answerHandshake(String command) {
+        boolean tic = model.contains("300S");
+
+        if(command.equals(tic ? "x" : "y")) {
+            // the mode byte toggles the mode, and the bridge only answers y when it turns MIM mode on
+            modeOn = !modeOn;
+
+            if(tic) {
+                return modeOn ? "TIC SCK-300S MODE ..." : "TIC MODE DISCONNECT...";
+            } else {
+                return modeOn ? "MIM SCK-300[P] MODE ..." : null;
+            }
+        } else if(getCommandName(command).equals("GetVersion") && !firmwareVersion.isEmpty()) {
+            return firmwareVersion;
+        }
+
+        return null;
+    }
+
+    /**
+     * Search for the command from the current position in the recording
+     *
+     * @param command
+     * @return the index of the command or -1 if it's not within the look ahead
+     */
+    private int findCommand(String command) {
+        int end = Math.min(commands.length, nextCommand + lookAhead);
+
+        for(int i = nextCommand; i < end; i++) {
+            if(commands[i].equals(command)) return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Indicate if every recorded command has been replayed or skipped
+     *
+     * @return
+     */
+    public synchronized boolean isFinished() {
+        return commands != null && nextCommand >= commands.length;
+    }
+
+    /**
+     * Get the number of commands which were found in the recording
+     *
+     * @return
+     */
+    public synchronized int getReplayedCount() {
+        return replayed;
+    }
+
+    /**
+     * Get the number of commands which weren't found in the recording and got no response
+     *
+     * @return
+     */
+    public synchronized int getUnmatchedCount() {
+        return unmatched;
+    }
+
+    /**
+     * Get the number of recorded commands which were passed over to find a later match, i.e. GetRPM
+     * polls which the replay didn't send
+     *
+     * @return
+     */
+    public synchronized int getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * Get the number of commands in the recording
+     *
+     * @return
+     */
+    public synchronized int getRecordedCount() {
+        return (commands != null) ? commands.length : 0;
+    }
+}
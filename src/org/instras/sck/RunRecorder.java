@@ -0,0 +1,460 @@
+package org.instras.sck;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Records a run to a binary file: every command sent, every response and every rpm sample, each as a fixed
+ * size record written straight into a memory mapped region of the file. Appending a record is just a few
+ * puts into the mapped buffer, so recording doesn't slow down the control loop, and the operating system
+ * writes the pages out in the background. The file is mapped a region at a time so runs lasting hours only
+ * ever have one region mapped.
+ *
+ * The header holds the device model, the firmware version and the motor parameters, along with the number
+ * of records, which is updated after every record so the file can still be read if the program dies mid run.
+ *
+ * Record layout, 64 bytes: time in ns since the start (long), type (byte), text length (byte), continuation
+ * count (short), value (int), text (48 bytes of ascii). Text longer than 48 bytes carries on in CONTINUATION
+ * records straight after the record, 48 bytes each, so commands and responses are kept in full. The reader
+ * joins them back into a single record.
+ */
+public class RunRecorder implements Closeable {
+    public static final byte COMMAND = 1;
+
+    public static final byte RESPONSE = 2;
+
+    public static final byte SAMPLE = 3;
+
+    public static final byte NOTE = 4;
+
+    public static final byte CONTINUATION = 5; // the rest of the text of the record before
+
+    public static final int HEADER_SIZE = 256;
+
+    public static final int RECORD_SIZE = 64;
+
+    private static final int TEXT_OFFSET = 16;
+
+    private static final int MAX_TEXT = RECORD_SIZE - TEXT_OFFSET;
+
+    private static final int MAX_HEADER_STRING = 64;
+
+    private static final int COUNT_OFFSET = 24; // where the record count is kept in the header
+
+    private static final byte[] MAGIC = "SCKRUN01".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int REGION_RECORDS = 65536; // records per mapped region, 4 MB
+
+    private final File file;
+
+    private final RandomAccessFile randomAccessFile;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer header;
+
+    private MappedByteBuffer region;
+
+    private int regionIndex = -1;
+
+    private long recordCount = 0;
+
+    private final long startNanos;
+
+    private boolean closed = false;
+
+    /**
+     * Create a recorder, overwriting the file if it exists
+     *
+     * @param file
+     * @param model the device model, i.e. SCK-300P
+     * @param firmwareVersion the response to GetVersion
+     * @param motorParameters the motor parameters sent to the unit
+     * @throws IOException
+     */
+    public RunRecorder(File file, String model, String firmwareVersion, String motorParameters) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+
+        channel.truncate(0);
+
+        startNanos = System.nanoTime();
+
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.put(MAGIC);
+        header.putInt(HEADER_SIZE);
+        header.putInt(RECORD_SIZE);
+        header.putLong(System.currentTimeMillis());
+        header.putLong(0); // record count
+        putHeaderString(model);
+        putHeaderString(firmwareVersion);
+        putHeaderString(motorParameters);
+    }
+
+    /**
+     * Create a recorder in a directory, naming the file after the current time. A counter is added to the name
+     * if the file already exists, so a run started in the same millisecond as another doesn't overwrite it
+     *
+     * @param directory
+     * @param model
+     * @param firmwareVersion
+     * @param motorParameters
+     * @return
+     * @throws IOException
+     */
+    public static RunRecorder create(File directory, String model, String firmwareVersion,
+                                     String motorParameters) throws IOException {
+        if(!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+
+        String name = "run_" + new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date());
+        File file = new File(directory, name + ".sckrun");
+
+        for(int i = 1; !file.createNewFile(); i++) {
+            file = new File(directory, name + "_" + i + ".sckrun");
+        }
+
+        return new RunRecorder(file, model, firmwareVersion, motorParameters);
+    }
+
+    /**
+     * Write a string into the header as a length followed by the bytes
+     *
+     * @param string
+     */
+    private void putHeaderString(String string) {
+        byte[] bytes = (string != null) ? string.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int length = Math.min(bytes.length, MAX_HEADER_STRING);
+
+        header.putShort((short)length);
+        header.put(bytes, 0, length);
+    }
+
+    /**
+     * Get the file being recorded to
+     *
+     * @return
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Record a command sent to the device
+     *
+     * @param data the command bytes, a trailing line terminator is dropped
+     * @param offset
+     * @param length
+     */
+    public void recordCommand(byte[] data, int offset, int length) {
+        append(COMMAND, System.nanoTime(), LineFrameCodec.NO_VALUE, data, offset, length);
+    }
+
+    /**
+     * Record a response line from the device
+     *
+     * @param data
+     * @param offset
+     * @param length
+     */
+    public void recordResponse(byte[] data, int offset, int length) {
+        int value = LineFrameCodec.parseValue(data, offset, length);
+        append(RESPONSE, System.nanoTime(), value, data, offset, length);
+    }
+
+    /**
+     * Record an rpm sample
+     *
+     * @param nanoTime the System.nanoTime() the sample was taken
+     * @param rpm
+     */
+    public void recordSample(long nanoTime, int rpm) {
+        append(SAMPLE, nanoTime, rpm, null, 0, 0);
+    }
+
+    /**
+     * Record a note, i.e. the start of a step in a sequence
+     *
+     * @param note
+     */
+    public void recordNote(String note) {
+        byte[] bytes = note.getBytes(StandardCharsets.US_ASCII);
+        append(NOTE, System.nanoTime(), LineFrameCodec.NO_VALUE, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Append a record, followed by continuation records for the text which doesn't fit in it
+     */
+    private synchronized void append(byte type, long nanoTime, int value, byte[] data, int offset, int length) {
+        if(closed) return;
+
+        // drop the line terminator
+        while(length > 0 && (data[offset + length - 1] == '\n' || data[offset + length - 1] == '\r')) {
+            length--;
+        }
+
+        int continuations = (length > MAX_TEXT) ? (length - 1)/MAX_TEXT : 0;
+        int part = Math.min(length, MAX_TEXT);
+        if(!putRecord(type, nanoTime, value, continuations, data, offset, part)) return;
+
+        for(int done = part; done < length; done += part) {
+            part = Math.min(length - done, MAX_TEXT);
+            if(!putRecord(CONTINUATION, nanoTime, LineFrameCodec.NO_VALUE, 0, data, offset + done, part)) return;
+        }
+
+        // only count the record once all of its text is in, so a reader never sees part of it
+        header.putLong(COUNT_OFFSET, recordCount);
+    }
+
+    /**
+     * Write a single record, mapping the next region of the file if the current one is full
+     *
+     * @return false if the region couldn't be mapped and recording has stopped
+     */
+    private boolean putRecord(byte type, long nanoTime, int value, int continuations, byte[] data, int offset, int length) {
+        try {
+            int index = (int)(recordCount / REGION_RECORDS);
+            if(index != regionIndex) {
+                long position = HEADER_SIZE + (long)index*REGION_RECORDS*RECORD_SIZE;
+                region = channel.map(FileChannel.MapMode.READ_WRITE, position, (long)REGION_RECORDS*RECORD_SIZE);
+                regionIndex = index;
+            }
+        } catch (IOException e) {
+            System.out.println("Run recorder error, stopping recording: " + e.getMessage());
+            closed = true;
+            return false;
+        }
+
+        int position = (int)(recordCount % REGION_RECORDS)*RECORD_SIZE;
+        region.putLong(position, nanoTime - startNanos);
+        region.put(position + 8, type);
+        region.put(position + 9, (byte)length);
+        region.putShort(position + 10, (short)continuations);
+        region.putInt(position + 12, value);
+
+        for(int i = 0; i < length; i++) {
+            region.put(position + TEXT_OFFSET + i, data[offset + i]);
+        }
+
+        recordCount++;
+        return true;
+    }
+
+    /**
+     * Get the number of records written, counting the continuation records
+     *
+     * @return
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Flush the records to disk and close the file
+     */
+    @Override
+    public synchronized void close() {
+        if(closed) return;
+        closed = true;
+
+        try {
+            if(region != null) region.force();
+            header.force();
+
+            // trim the unused part of the last region. Windows won't allow this while the region is still
+            // mapped, in which case the record count in the header marks the end
+            try {
+                channel.truncate(HEADER_SIZE + recordCount*RECORD_SIZE);
+            } catch (IOException e) { }
+
+            channel.close();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A record read back from a run file
+     */
+    public static class Record {
+        public long time; // nanoseconds since the start of the run
+
+        public byte type;
+
+        public int value; // the rpm of a sample, or the integer value of a response
+
+        public String text;
+
+        @Override
+        public String toString() {
+            String[] names = {"", "CMD", "RSP", "RPM", "NOTE"};
+            String name = (type > 0 && type < names.length) ? names[type] : "" + type;
+            String valueString = (value != LineFrameCodec.NO_VALUE) ? "" + value : "";
+
+            return String.format("%12.3f %-4s %6s %s", time/1e6, name, valueString, text);
+        }
+    }
+
+    /**
+     * Reads the records back from a run file. Like the writer it maps the file a region at a time, so runs of
+     * any length can be read
+     */
+    public static class Reader implements Closeable {
+        private final RandomAccessFile randomAccessFile;
+
+        private final FileChannel channel;
+
+        private MappedByteBuffer region;
+
+        private long regionIndex = -1;
+
+        public final long startTime; // System.currentTimeMillis() at the start of the run
+
+        public final long recordCount; // the number of records in the file, counting the continuation records
+
+        public final String model;
+
+        public final String firmwareVersion;
+
+        public final String motorParameters;
+
+        private long nextRecord = 0;
+
+        /**
+         * Open a run file
+         *
+         * @param file
+         * @throws IOException if the file isn't a run file
+         */
+        public Reader(File file) throws IOException {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            channel = randomAccessFile.getChannel();
+
+            if(channel.size() < HEADER_SIZE) {
+                randomAccessFile.close();
+                throw new IOException("Not a run file: " + file);
+            }
+
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            int headerSize = header.getInt();
+            int recordSize = header.getInt();
+
+            if(!new String(magic, StandardCharsets.US_ASCII).equals(new String(MAGIC, StandardCharsets.US_ASCII)) ||
+                    headerSize != HEADER_SIZE || recordSize != RECORD_SIZE) {
+                randomAccessFile.close();
+                throw new IOException("Not a run file: " + file);
+            }
+
+            startTime = header.getLong();
+
+            // don't trust the count past the end of the file
+            long count = header.getLong();
+            recordCount = Math.min(count, (channel.size() - HEADER_SIZE)/RECORD_SIZE);
+
+            model = getHeaderString(header);
+            firmwareVersion = getHeaderString(header);
+            motorParameters = getHeaderString(header);
+        }
+
+        private static String getHeaderString(MappedByteBuffer header) {
+            byte[] bytes = new byte[header.getShort()];
+            header.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read the next record, joining on the text of its continuation records
+         *
+         * @param record filled in with the record
+         * @return false if there are no more records
+         * @throws IOException if the next region of the file can't be mapped
+         */
+        public boolean next(Record record) throws IOException {
+            if(nextRecord >= recordCount) return false;
+
+            int position = position(nextRecord);
+            record.time = region.getLong(position);
+            record.type = region.get(position + 8);
+            record.value = region.getInt(position + 12);
+
+            long end = Math.min(recordCount, nextRecord + 1 + region.getShort(position + 10));
+
+            int length = 0;
+            for(long i = nextRecord; i < end; i++) {
+                position = position(i);
+                length += region.get(position + 9);
+            }
+
+            byte[] text = new byte[length];
+            int pos = 0;
+            for(long i = nextRecord; i < end; i++) {
+                position = position(i);
+                for(int j = 0; j < region.get(position + 9); j++) {
+                    text[pos++] = region.get(position + TEXT_OFFSET + j);
+                }
+            }
+            record.text = new String(text, StandardCharsets.US_ASCII);
+
+            nextRecord = end;
+            return true;
+        }
+
+        /**
+         * Map the region holding a record if it isn't mapped already
+         *
+         * @param index the record number
+         * @return the position of the record in the region
+         */
+        private int position(long index) throws IOException {
+            long regionNumber = index / REGION_RECORDS;
+
+            if(regionNumber != regionIndex) {
+                long first = regionNumber*REGION_RECORDS;
+                long records = Math.min(REGION_RECORDS, recordCount - first);
+                region = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first*RECORD_SIZE,
+                        records*RECORD_SIZE);
+                regionIndex = regionNumber;
+            }
+
+            return (int)(index % REGION_RECORDS)*RECORD_SIZE;
+        }
+
+        @Override
+        public void close() throws IOException {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Print a run file
+     *
+     * @param args the file name
+     */
+    public static void main(String[] args) throws IOException {
+        try (Reader reader = new Reader(new File(args[0]))) {
+            System.out.println("Started: " + new Date(reader.startTime));
+            System.out.println("Model: " + reader.model);
+            System.out.println("Firmware: " + reader.firmwareVersion);
+            System.out.println("Motor Parameters: " + reader.motorParameters);
+            System.out.println("Records: " + reader.recordCount + "\n");
+
+            Record record = new Record();
+            while(reader.next(record)) {
+                System.out.println(record);
+            }
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package org.instras.sck;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A session with one SCK unit, used by the DeviceManager to run many units from one program. Each session has its
+ * own MiMTalk or TicTalk connection, its own rpm sampler, and its own thread which runs the commands and step
+ * sequences for the unit, so a slow or unresponsive port only ever holds up its own unit. All the run state,
+ * such as the current speed and whether the unit is running, is kept here instead of being shared.
+ */
+public class SCKDevice {
+    public enum Model {
+        MIM,
+        TIC
+    }
+
+    private final String address;
+
+    private final Model model;
+
+    private volatile MiMTalk miMTalk;
+
+    private volatile TicTalk ticTalk;
+
+    private volatile RPMSampler sampler;
+
+    private volatile SpeedController controller; // trims the BLDC speed while holding a step, if closed loop
+
+    private final ExecutorService executor; // runs everything sent to this unit, one task at a time
+
+    private String version = "";
+
+    private volatile boolean running = false;
+
+    private volatile int currentSpeed = 0; // the last speed set
+
+    private volatile int currentStep = 0; // the step of the sequence being run, starting at 1
+
+    private int acceleration = 500; // in rpm per second
+
+    private float jerk = 0; // in rpm per second squared, 0 for linear ramps
+
+    private int samplePeriodMS = 100; // time between rpm samples while the speed is changing
+
+    private int maxSamplePeriodMS = 1000; // time between rpm samples once the speed is steady
+
+    private boolean closedLoop = false;
+
+    private double controllerKp = 0.2;
+
+    private double controllerKi = 0.5;
+
+    /**
+     * Create a session for a unit. The connection isn't opened until connect is called
+     *
+     * @param address the serial port or transport address
+     * @param model which board the unit uses
+     */
+    public SCKDevice(String address, Model model) {
+        this.address = address;
+        this.model = model;
+
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SCK " + address);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the address of the unit
+     *
+     * @return
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Get the board the unit uses
+     *
+     * @return
+     */
+    public Model getModel() {
+        return model;
+    }
+
+    /**
+     * Get the firmware version the unit reported when connecting
+     *
+     * @return
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Set the acceleration used when ramping between steps
+     *
+     * @param acceleration in rpm per second
+     */
+    public void setAcceleration(int acceleration) {
+        this.acceleration = acceleration;
+    }
+
+    /**
+     * Set the jerk limit used when ramping between steps
+     *
+     * @param jerk in rpm per second squared, or 0 for linear ramps
+     */
+    public void setJerk(float jerk) {
+        this.jerk = jerk;
+    }
+
+    /**
+     * Turn on host side closed loop control of the BLDC speed while holding each step
+     *
+     * @param kp the proportional gain
+     * @param ki the integral gain, per second
+     */
+    public void setClosedLoop(double kp, double ki) {
+        this.closedLoop = true;
+        this.controllerKp = kp;
+        this.controllerKi = ki;
+    }
+
+    /**
+     * Set the time between rpm samples
+     *
+     * @param samplePeriodMS
+     */
+    public void setSamplePeriod(int samplePeriodMS) {
+        this.samplePeriodMS = samplePeriodMS;
+    }
+
+    /**
+     * Run a task on this unit's thread
+     *
+     * @param task
+     * @return
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Connect to the unit on its own thread
+     *
+     * @return the future response to GetVersion
+     */
+    public Future<String> connect() {
+        return submit(() -> {
+            if(model == Model.MIM) {
+                miMTalk = new MiMTalk();
+                miMTalk.connect(address);
+                miMTalk.setJerk(jerk);
+                version = miMTalk.getVersion();
+                sampler = new RPMSampler(miMTalk, 4096);
+            } else {
+                ticTalk = new TicTalk();
+                ticTalk.connect(address);
+                version = ticTalk.getVersion();
+                sampler = new RPMSampler(ticTalk, 4096);
+            }
+
+            if(version == null || version.isEmpty()) {
+                throw new IOException("No response from " + address);
+            }
+
+            return version;
+        });
+    }
+
+    /**
+     * Indicate if the unit is connected
+     *
+     * @return
+     */
+    public boolean isConnected() {
+        if(miMTalk != null) {
+            return miMTalk.isConnected();
+        } else if(ticTalk != null) {
+            return ticTalk.isConnected();
+        }
+
+        return false;
+    }
+
+    /**
+     * Run a compiled step sequence on this unit's thread
+     *
+     * @param recipe the step sequence. It's only read, so one recipe can be run on many units
+     * @return future which is true if the sequence ran to the end, or false if it was stopped
+     */
+    public Future<Boolean> runRecipe(final Recipe recipe) {
+        running = true;
+        return submit(() -> runSteps(recipe));
+    }
+
+    /**
+     * Run the steps, ramping to the speed of each step then holding it for the step's time
+     */
+    private boolean runSteps(Recipe recipe) throws InterruptedException {
+        motorOn();
+        sampler.setSamplePeriod(samplePeriodMS);
+        sampler.setAdaptivePeriod(maxSamplePeriodMS, 20);
+        sampler.start();
+
+        if(closedLoop && miMTalk != null && miMTalk.currentMotor == MiMTalk.MotorType.BLDC) {
+            controller = new SpeedController(miMTalk, sampler);
+            controller.setGains(controllerKp, controllerKi);
+            controller.setLoopFrequency(1000.0/samplePeriodMS/2);
+        }
+
+        try {
+            int[] loopCounts = new int[recipe.getLength()];
+            int stepCount = 0;
+
+            for(int i = recipe.first(loopCounts); i >= 0 && running; i = recipe.next(i, loopCounts)) {
+                currentStep = ++stepCount;
+                int targetSpeed = recipe.getSpeed(i);
+                long holdMS = recipe.getDwell(i)*1000L;
+
+                if(recipe.getDirection(i) != Recipe.DIR_KEEP) {
+                    setDirection(recipe.getDirection(i) == Recipe.DIR_CW);
+                }
+
+                // the ramp sets the speed, so the controller only runs while the step is held
+                if(controller != null) controller.stop();
+                sampler.speedChanging();
+                rampTo(targetSpeed, recipe.getAcceleration(i, acceleration));
+                if(controller != null) controller.start(targetSpeed);
+
+                if(recipe.getStableBand(i) > 0) {
+                    waitUntilStable(targetSpeed, recipe.getStableBand(i));
+                }
+
+                // hold the speed for the time of this step
+                long end = System.nanoTime() + holdMS*1000000L;
+                while(running && System.nanoTime() < end) {
+                    Thread.sleep(Math.min(100, Math.max(1, (end - System.nanoTime())/1000000L)));
+                }
+            }
+
+            return running;
+        } finally {
+            if(controller != null) {
+                controller.stop();
+                controller = null;
+            }
+
+            sampler.stop();
+            motorOff();
+            currentStep = 0;
+            running = false;
+        }
+    }
+
+    /**
+     * Set the direction the motor spins. Only the Tic can change direction
+     *
+     * @param clockwise
+     */
+    private void setDirection(boolean clockwise) {
+        if(ticTalk != null) {
+            ticTalk.setDirection(clockwise);
+        } else {
+            System.out.println(address + ": Direction can't be changed on this unit ...");
+        }
+    }
+
+    /**
+     * Wait until the measured speed is within a band of the target speed, the unit is stopped, or the stable
+     * timeout
+     *
+     * @param targetSpeed
+     * @param band in rpm
+     */
+    private void waitUntilStable(int targetSpeed, int band) throws InterruptedException {
+        long end = System.nanoTime() + Recipe.STABLE_TIMEOUT_S*1000000000L;
+
+        while(running && System.nanoTime() < end) {
+            int speed = sampler.getLatestRPM(0);
+            if(speed >= 0 && Math.abs(speed - targetSpeed) <= band) return;
+
+            Thread.sleep(50);
+        }
+
+        if(running) {
+            System.out.println(address + ": Speed not stable within " + band + " rpms ...");
+        }
+    }
+
+    /**
+     * Move to the speed
+     *
+     * @param targetSpeed
+     * @param acceleration in rpm per second
+     */
+    private void rampTo(int targetSpeed, int acceleration) throws InterruptedException {
+        if(miMTalk != null) {
+            if(miMTalk.currentMotor == MiMTalk.MotorType.BLDC) {
+                if(targetSpeed > currentSpeed) {
+                    miMTalk.rampToRPM(targetSpeed, acceleration, currentSpeed, null, null);
+                } else {
+                    // we are slowing down
+                    miMTalk.setRPM(targetSpeed);
+                }
+            } else {
+                miMTalk.rampStepperToRPM(currentSpeed, targetSpeed);
+            }
+        } else {
+            ticTalk.setAcceleration(acceleration);
+
+            if(jerk > 0) {
+                // the Tic can't do S-curves, so the host sends the setpoints
+                ticTalk.runTrajectory(Trajectory.compile(currentSpeed, targetSpeed, acceleration, jerk,
+                        TicTalk.COMMAND_RATE), null);
+                currentSpeed = targetSpeed;
+                return;
+            }
+
+            // the Tic does the ramp itself, so wait for the time it should take
+            ticTalk.setRPM(targetSpeed);
+
+            long rampMS = Math.abs(targetSpeed - currentSpeed)*1000L/Math.max(acceleration, 1);
+            long end = System.nanoTime() + rampMS*1000000L;
+
+            while(running && System.nanoTime() < end && sampler.getLatestRPM(0) != targetSpeed) {
+                Thread.sleep(50);
+            }
+        }
+
+        currentSpeed = targetSpeed;
+    }
+
+    private void motorOn() {
+        if(miMTalk != null) {
+            miMTalk.motorOn();
+        } else {
+            ticTalk.motorOn();
+        }
+    }
+
+    private void motorOff() {
+        currentSpeed = 0;
+
+        if(miMTalk != null) {
+            miMTalk.motorOff();
+        } else {
+            ticTalk.motorOff();
+        }
+    }
+
+    /**
+     * Stop the sequence running on this unit. Can be called from any thread
+     */
+    public void stop() {
+        running = false;
+
+        if(miMTalk != null) {
+            miMTalk.stopRamp();
+        } else if(ticTalk != null) {
+            ticTalk.stopRamp();
+        }
+    }
+
+    /**
+     * Indicate if a step sequence is running
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Get the step of the sequence being run
+     *
+     * @return the step starting at 1, or 0 if not running
+     */
+    public int getCurrentStep() {
+        return currentStep;
+    }
+
+    /**
+     * Get the speed the unit was last set to
+     *
+     * @return
+     */
+    public int getCurrentSpeed() {
+        return currentSpeed;
+    }
+
+    /**
+     * Get the latest measured rpm
+     *
+     * @param roundTo round the rpm to a multiple of this value, or 0 for no rounding
+     * @return the rpm or -1 if the unit hasn't been sampled
+     */
+    public int getRPM(double roundTo) {
+        return (sampler != null) ? sampler.getLatestRPM(roundTo) : -1;
+    }
+
+    /**
+     * Get the rpm sampler of this unit
+     *
+     * @return
+     */
+    public RPMSampler getSampler() {
+        return sampler;
+    }
+
+    /**
+     * Get the command stats of this unit
+     *
+     * @return the stats or null if not connected
+     */
+    public CommandStats getStats() {
+        if(miMTalk != null) {
+            return miMTalk.getStats();
+        } else if(ticTalk != null) {
+            return ticTalk.getStats();
+        }
+
+        return null;
+    }
+
+    /**
+     * Stop the unit and close the connection
+     */
+    public void close() {
+        stop();
+
+        // close on the unit's thread once the running sequence has finished
+        executor.submit(() -> {
+            if(miMTalk != null) {
+                miMTalk.close();
+            } else if(ticTalk != null) {
+                ticTalk.close();
+            }
+        });
+
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return address + " (" + model + ")";
+    }
+}
@@ -1,12 +1,10 @@
 package org.instras.sck;
 
-import gnu.io.NRSerialPort;
-
 import javax.swing.*;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created with IntelliJ IDEA.
@@ -25,9 +23,9 @@ public class SCKTalk {
     public int minMotorRPM = 0;
     public int maxMotorRPM = 0;
     private JTextArea console;
-    private NRSerialPort serial;
-    private DataInputStream ins;
-    private DataOutputStream outs;
+    private SCKTransport transport;
+    private CommandPipeline pipeline;
+    private int responseTimeout = 1000; // max time in milliseconds to wait for a response line
 
     public void setConsole(JTextArea console) {
         this.console = console;
@@ -39,16 +37,14 @@ public class SCKTalk {
 
     /**
      * Method to connect to the serial port
-     * @param portName
+     * @param portName the serial port, or a btspp:// or tcp:// address
      */
-    public void connect(String portName) {
+    public void connect(String portName) throws IOException {
         if(testMode) return;
 
-        serial = new NRSerialPort(portName, 9600);
-        serial.connect();
-
-        ins = new DataInputStream(serial.getInputStream());
-        outs = new DataOutputStream(serial.getOutputStream());
+        transport = SCKTransport.create(portName, 9600);
+        pipeline = new CommandPipeline(transport, LineFrameCodec.STV3_TERMINATOR);
+        transport.open();
     }
 
     /**
@@ -61,42 +57,30 @@ public class SCKTalk {
         if(testMode) return "OK";
 
         try {
-            command += "\n\r";
-            outs.writeBytes(command);
-            return readResponse();
+            Future<String> response = pipeline.submit(command, true);
+            return response.get(responseTimeout, TimeUnit.MILLISECONDS);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
+        } catch (Exception e) {
+            // no response before the timeout
+            return "";
         }
     }
 
     /**
-     * Method to read the results after a command has been sent
+     * Method to read the response to the oldest command still in flight
      * @return
      */
     public String readResponse() {
         if(testMode) return "TESTMODE";
 
         try {
-            // wait 1 second so data can arrive from ST-V3
-            Thread.sleep(1000);
-
-            StringBuilder sb = new StringBuilder(); //ins.readUTF();
-            byte[] buffer = new byte[128];
-            int len = -1;
-
-            while ((len = ins.read(buffer)) > 0 ) {
-                sb.append(new String(buffer,0,len));
-            }
-
-            return sb.toString().trim();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            Future<String> response = pipeline.oldestPending();
+            return (response != null) ? response.get(responseTimeout, TimeUnit.MILLISECONDS) : "";
+        } catch (Exception e) {
+            return "";
         }
-
-        return "ERROR";
     }
 
     /**
@@ -116,7 +100,23 @@ public class SCKTalk {
     }
 
     /**
-     * Method to get a performance profile for a motor connected to S1
+     * Method to get the rpm from the ST-V3
+     *
+     * @return the rpm or -1 if the response isn't a number
+     */
+    public int getRPM() {
+        String response = sendCommand("GET RPM");
+
+        try {
+            return Integer.parseInt(response.trim());
+        } catch(NumberFormatException | NullPointerException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Method to get a performance profile for a motor connected to S1. Each point is read as soon as the
+     * speed settles, waiting at most the 4 seconds the profile used to wait at every point
      *
      * @param increment
      * @return
@@ -124,31 +124,30 @@ public class SCKTalk {
     public HashMap<Integer, Integer> getMotorProfile(int increment, String pin) throws Exception {
         HashMap<Integer, Integer> motorProfileMap = new HashMap<Integer, Integer>();
 
-        print("PWM\tRPM");
+        RPMSampler sampler = new RPMSampler(this::getRPM, 1024);
+        sampler.setSamplePeriod(100);
+        sampler.start();
 
-        for(int i = 1000; i <= 2000; i += increment) {
-            sendCommand("SET " + pin + " " + i);
-            Thread.sleep(4000);
+        MotorProfiler profiler = new MotorProfiler(pwm -> sendCommand("SET " + pin + " " + pwm), sampler);
+        profiler.setTimeout(4000);
 
-            Integer rpm = -1;
-            String response = sendCommand("GET RPM");
+        print("PWM\tRPM\tSettle (ms)");
 
-            try {
-                rpm = new Integer(response);
-            } catch(NumberFormatException nfe) {
-                System.out.println("Invalid RPM data: " + response);
-            }
-
-            motorProfileMap.put(i, rpm);
-
-            // set the min and max rpm
-            if(rpm > 0 && minMotorRPM == 0) {
-                minMotorRPM = rpm;
-            } else if(rpm > maxMotorRPM) {
-                maxMotorRPM = rpm;
-            }
-
-            print(i + "\t" + rpm);
+        try {
+            profiler.run(1000, 2000, increment, (pwm, rpm, settleMS, settled) -> {
+                motorProfileMap.put(pwm, rpm);
+
+                // set the min and max rpm
+                if(rpm > 0 && minMotorRPM == 0) {
+                    minMotorRPM = rpm;
+                } else if(rpm > maxMotorRPM) {
+                    maxMotorRPM = rpm;
+                }
+
+                print(pwm + "\t" + rpm + "\t" + settleMS + (settled ? "" : " (not settled)"));
+            });
+        } finally {
+            sampler.stop();
         }
 
         return motorProfileMap;
@@ -172,7 +171,7 @@ public class SCKTalk {
         if(testMode) return;
 
         setModeNormal();
-        serial.disconnect();
+        transport.close();
     }
 
     /**
@@ -10,6 +10,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.List;
 import java.util.Properties;
 import javax.swing.*;
 import com.jgoodies.forms.factories.*;
@@ -40,8 +41,42 @@ public class SCKTalkFrame extends JFrame {
 
     private int acceleration = 500; // the default acceleration for the motor
 
+    private float jerk = 0; // jerk limit of the ramps in rpm per second squared, 0 for linear ramps
+
     private int maxTime = 0; // max time to spin coat
 
+    private RPMSampler rpmSampler = null; // polls the motor speed in the background while it's running
+
+    private int samplePeriodMS = 50; // time between rpm samples while the speed is changing
+
+    private int maxSamplePeriodMS = 1000; // time between rpm samples once the speed is steady
+
+    private int steadyBandRPM = 20; // the most the rpm can move between samples and still count as steady
+
+    private boolean closedLoop = false; // trim the BLDC speed on the host to hold the set speed
+
+    private double controllerKp = 0.2;
+
+    private double controllerKi = 0.5;
+
+    private double controllerFrequency = 5; // speed controller updates per second
+
+    private boolean recordRuns = true; // write each run to a binary file in the record directory
+
+    private String recordDirectory = "runs";
+
+    private String firmwareVersion = ""; // the GetVersion response, stored in the run files
+
+    private String motorParameters = ""; // the motor parameters sent to the unit, stored in the run files
+
+    private boolean hostCalibration = false; // set the BLDC pwm from the saved motor profile instead of SetRPM
+
+    private String recipeDirectory = RecipeLibrary.DEFAULT_DIRECTORY;
+
+    private RecipeLibrary recipeLibrary = null; // opened the first time the recipes are searched
+
+    private String recipeName = null; // the library recipe loaded into the ramp sequence, if any
+
     // store program properties
     private final String PROPERTIES_FILENAME = "scktalk.properties";
     private Properties properties = new Properties();
@@ -64,6 +99,63 @@ public class SCKTalkFrame extends JFrame {
 
         // read the step sequence
         readSavedStepSequence();
+
+        // look for the units on the serial ports in the background
+        discoverDevices();
+    }
+
+    /**
+     * Probe all the serial ports at the same time, then select the port and model of the unit found.
+     * The saved port is kept if a unit was found on it. Connect is disabled until the scan is done, since
+     * the probes hold the ports open
+     */
+    private void discoverDevices() {
+        connectButton.setText("SCANNING ...");
+        connectButton.setEnabled(false);
+
+        SwingWorker<List<DeviceDiscovery.DiscoveredDevice>, Void> worker =
+                new SwingWorker<List<DeviceDiscovery.DiscoveredDevice>, Void>() {
+            @Override
+            protected List<DeviceDiscovery.DiscoveredDevice> doInBackground() throws Exception {
+                DeviceDiscovery discovery = new DeviceDiscovery();
+                discovery.setProbeSTV3(false);
+                return discovery.discover();
+            }
+
+            @Override
+            protected void done() {
+                connectButton.setText("CONNECT");
+                connectButton.setEnabled(true);
+
+                try {
+                    List<DeviceDiscovery.DiscoveredDevice> found = get();
+                    if(found.isEmpty()) return;
+
+                    DeviceDiscovery.DiscoveredDevice selected = found.get(0);
+                    for(DeviceDiscovery.DiscoveredDevice device: found) {
+                        printMessage("Found " + device);
+
+                        if(device.port.equals(properties.getProperty("comm.port"))) {
+                            selected = device;
+                        }
+                    }
+
+                    portComboBox.setSelectedItem(selected.port);
+
+                    if(selected.type == DeviceDiscovery.DeviceType.TIC) {
+                        ticModelRadioButton.doClick();
+                    } else if(selected.version.contains("300P")) {
+                        sck300PModelRadioButton.doClick();
+                    } else {
+                        sck300ModelRadioButton.doClick();
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+
+        worker.execute();
     }
 
     /**
@@ -89,10 +181,21 @@ public class SCKTalkFrame extends JFrame {
 
             String acceleration = properties.getProperty("set.acceleration", "800");
             accTextField.setText(acceleration);
+            jerk = Float.parseFloat(properties.getProperty("set.jerk", "0"));
 
             String increment = properties.getProperty("set.increment", "100");
             incrementTextField.setText(increment);
 
+            recordRuns = Boolean.parseBoolean(properties.getProperty("record.runs", "true"));
+            recordDirectory = properties.getProperty("record.dir", "runs");
+            recipeDirectory = properties.getProperty("recipe.dir", RecipeLibrary.DEFAULT_DIRECTORY);
+            hostCalibration = Boolean.parseBoolean(properties.getProperty("host.calibration", "false"));
+
+            closedLoop = Boolean.parseBoolean(properties.getProperty("closed.loop", "false"));
+            controllerKp = Double.parseDouble(properties.getProperty("closed.loop.kp", "0.2"));
+            controllerKi = Double.parseDouble(properties.getProperty("closed.loop.ki", "0.5"));
+            controllerFrequency = Double.parseDouble(properties.getProperty("closed.loop.hz", "5"));
+
             System.out.println("Properties File Loaded ...");
         } catch (IOException e) {
             System.out.println("Error Loading Properties File ...");
@@ -123,10 +226,21 @@ public class SCKTalkFrame extends JFrame {
 
             String acceleration = accTextField.getText();
             properties.setProperty("set.acceleration", acceleration);
+            properties.setProperty("set.jerk", "" + jerk);
 
             String increment = incrementTextField.getText();
             properties.setProperty("set.increment", increment);
 
+            properties.setProperty("record.runs", "" + recordRuns);
+            properties.setProperty("record.dir", recordDirectory);
+            properties.setProperty("recipe.dir", recipeDirectory);
+            properties.setProperty("host.calibration", "" + hostCalibration);
+
+            properties.setProperty("closed.loop", "" + closedLoop);
+            properties.setProperty("closed.loop.kp", "" + controllerKp);
+            properties.setProperty("closed.loop.ki", "" + controllerKi);
+            properties.setProperty("closed.loop.hz", "" + controllerFrequency);
+
             properties.store(output, "SCKTalk Defaults");
             System.out.println("\nSaved Properties ...");
         } catch (IOException e) {
@@ -179,7 +293,7 @@ public class SCKTalkFrame extends JFrame {
     /**
      * Connect to the MiM board for SCK-300/300P
      */
-    private void connectToMiM(String portName) {
+    private void connectToMiM(String portName) throws IOException {
         miMTalk = new MiMTalk();
         miMTalk.connect(portName);
         miMTalk.setConsole(consoleTextArea);
@@ -187,10 +301,12 @@ public class SCKTalkFrame extends JFrame {
         String response = miMTalk.getVersion();
 
         printMessage("SCK Response: " + response);
+        firmwareVersion = response;
 
         if (response != null && response.contains("MIM") || miMTalk.testMode) {
             printMessage("Connected to SCK unit ...\n");
             sendSCKParameters();
+            loadCalibration();
             connectButton.setBackground(Color.ORANGE);
             connectButton.setEnabled(false);
         } else {
@@ -200,10 +316,26 @@ public class SCKTalkFrame extends JFrame {
         }
     }
 
+    /**
+     * Use the calibration from the last motor profile to set the BLDC speed, if host calibration is on
+     */
+    private void loadCalibration() {
+        if(!hostCalibration) return;
+
+        CalibrationTable table = CalibrationTable.load(CalibrationTable.DEFAULT_FILENAME);
+
+        if(table != null) {
+            miMTalk.setCalibration(table);
+            printMessage("Using Host " + table + "\n");
+        } else {
+            printMessage("No motor calibration. Run Get Motor Profile to make one ...\n");
+        }
+    }
+
     /**
      * Connect to the Tic board for SCK-300S
      */
-    private void connectToTic(String portName) {
+    private void connectToTic(String portName) throws IOException {
         ticTalk = new TicTalk();
         ticTalk.connect(portName);
         ticTalk.setConsole(consoleTextArea);
@@ -211,6 +343,7 @@ public class SCKTalkFrame extends JFrame {
         String response = ticTalk.getVersion();
 
         printMessage("SCK-300S Response: " + response);
+        firmwareVersion = response;
 
         if (response != null && response.contains("TIC_SCK")) {
             printMessage("Connected to SCK-300S unit ...\n");
@@ -231,6 +364,7 @@ public class SCKTalkFrame extends JFrame {
     private void sendSCKParameters() {
         try {
             String sckModel = sckComboBox.getSelectedItem().toString().trim();
+            motorParameters = sckModel;
             String[] sa1 = sckModel.split(":");
             String[] sa2 = sa1[1].split(",");
 
@@ -304,6 +438,8 @@ public class SCKTalkFrame extends JFrame {
         } else {
             if(miMTalk != null) {
                 miMTalk.stopRamp(); // stop the ramp process just in case
+            } else if(ticTalk != null) {
+                ticTalk.stopRamp();
             }
 
             sckRunning = false;
@@ -315,8 +451,16 @@ public class SCKTalkFrame extends JFrame {
      * Run the mim talk driven motor
      */
     private void runMimTalkMotor() {
+        final RunRecorder recorder = startRunRecorder();
+        miMTalk.setRecorder(recorder);
+
         // now send command to go to the desired speed
+        miMTalk.setJerk(jerk);
         miMTalk.motorOn();
+        final RPMSampler sampler = startRPMSampler(new RPMSampler(miMTalk, 16384));
+        sampler.setRecorder(recorder);
+
+        final SpeedController controller = createSpeedController(sampler);
 
         // create a timer thread to update the time and check for new speed settings
         Thread timerThread = new Thread() {
@@ -336,12 +480,16 @@ public class SCKTalkFrame extends JFrame {
                     spinTimeLabel.setText(timeString);
 
                     // read the rpm and update the speed label
-                    String speedString = SCKUtils.zeroPad(miMTalk.getRPM(roundToValue));
+                    String speedString = SCKUtils.zeroPad(sampler.getLatestRPM(roundToValue));
                     speedLabel.setText(speedString);
 
                     // check to make sure we don't have to update the speed
                     if(currentSpeed != oldSpeed) {
-                        if (miMTalk.currentMotor == MiMTalk.MotorType.BLDC) {
+                        sampler.speedChanging();
+
+                        if (controller != null) {
+                            controller.setSetpoint(currentSpeed);
+                        } else if (miMTalk.currentMotor == MiMTalk.MotorType.BLDC) {
                             miMTalk.setRPM(currentSpeed);
                         } else {
                             miMTalk.rampStepperToRPM(oldSpeed, currentSpeed);
@@ -361,7 +509,11 @@ public class SCKTalkFrame extends JFrame {
                 }
 
                 // stop the motor and reset the timer
+                if(controller != null) controller.stop();
+                sampler.stop();
                 miMTalk.motorOff();
+                miMTalk.setRecorder(null);
+                stopRunRecorder(recorder);
                 spinTimeLabel.setText("00000");
                 speedLabel.setText("00000");
             }
@@ -387,6 +539,8 @@ public class SCKTalkFrame extends JFrame {
 
             @Override
             protected void done()  {
+                // hold the speed reached by the ramp
+                if(controller != null) controller.start(currentSpeed);
                 timerThread.start();
             }
         };
@@ -395,6 +549,82 @@ public class SCKTalkFrame extends JFrame {
         sw1.execute();
     }
 
+    /**
+     * Start polling the motor speed in the background, replacing the sampler from the previous run
+     *
+     * @param sampler
+     * @return the sampler
+     */
+    private RPMSampler startRPMSampler(RPMSampler sampler) {
+        if(rpmSampler != null) {
+            rpmSampler.stop();
+        }
+
+        rpmSampler = sampler;
+        rpmSampler.setSamplePeriod(samplePeriodMS);
+        rpmSampler.setAdaptivePeriod(maxSamplePeriodMS, steadyBandRPM);
+        rpmSampler.start();
+
+        return sampler;
+    }
+
+    /**
+     * Create the host side speed controller for the BLDC motor if closed loop control is turned on
+     *
+     * @param sampler the sampler reading the motor speed
+     * @return the controller, or null if running open loop
+     */
+    private SpeedController createSpeedController(RPMSampler sampler) {
+        if(!closedLoop || miMTalk.currentMotor != MiMTalk.MotorType.BLDC) return null;
+
+        SpeedController controller = new SpeedController(miMTalk, sampler);
+        controller.setGains(controllerKp, controllerKi);
+        controller.setLoopFrequency(controllerFrequency);
+
+        return controller;
+    }
+
+    /**
+     * Start recording a run if run recording is turned on
+     *
+     * @return the recorder, or null if not recording
+     */
+    private RunRecorder startRunRecorder() {
+        if(!recordRuns) return null;
+
+        try {
+            RunRecorder recorder = RunRecorder.create(new File(recordDirectory), sckType, firmwareVersion, motorParameters);
+            recorder.recordNote("Start " + currentSpeed + " RPM");
+            printMessage("Recording run to " + recorder.getFile());
+            return recorder;
+        } catch (IOException ex) {
+            printMessage("Unable to record run: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Finish recording a run
+     *
+     * @param recorder the recorder, can be null
+     */
+    private void stopRunRecorder(RunRecorder recorder) {
+        if(recorder != null) {
+            recorder.recordNote("Stop");
+            recorder.close();
+            System.out.println("Recorded " + recorder.getRecordCount() + " records to " + recorder.getFile());
+        }
+    }
+
+    /**
+     * Get the sampler holding the motor speed readings of the current or last run
+     *
+     * @return the sampler or null if the motor hasn't been started
+     */
+    public RPMSampler getRPMSampler() {
+        return rpmSampler;
+    }
+
     /**
      * Get the acceleration and time
      */
@@ -418,8 +648,13 @@ public class SCKTalkFrame extends JFrame {
      * TO-DO 6/9/2023 correct acceleration factor!
      */
     private void runTicTalkMotor() {
+        final RunRecorder recorder = startRunRecorder();
+        ticTalk.setRecorder(recorder);
+
         // now send command to go to the desired speed
         ticTalk.motorOn();
+        final RPMSampler sampler = startRPMSampler(new RPMSampler(ticTalk, 16384));
+        sampler.setRecorder(recorder);
 
         // ramp to the motor speed
         try {
@@ -457,7 +692,7 @@ public class SCKTalkFrame extends JFrame {
                     spinTimeLabel.setText(timeString);
 
                     // read the rpm and update the speed label
-                    int speed = ticTalk.getRPM(roundToValue);
+                    int speed = sampler.getLatestRPM(roundToValue);
                     String speedString = SCKUtils.zeroPad(speed);
                     speedLabel.setText(speedString);
 
@@ -471,6 +706,7 @@ public class SCKTalkFrame extends JFrame {
 
                     // check to make sure we don't have to update the speed
                     if(currentSpeed != oldSpeed) {
+                        sampler.speedChanging();
                         ticTalk.setRPM(currentSpeed);
                         oldSpeed = currentSpeed;
                         //ramping = true;
@@ -487,7 +723,10 @@ public class SCKTalkFrame extends JFrame {
                 }
 
                 // stop the motor and reset the timer
+                sampler.stop();
                 ticTalk.motorOff();
+                ticTalk.setRecorder(null);
+                stopRunRecorder(recorder);
                 spinTimeLabel.setText("00000");
                 speedLabel.setText("00000");
             }
@@ -598,9 +837,18 @@ public class SCKTalkFrame extends JFrame {
      * Method to run the ramp step sequence
      */
     private void runStepSequence() {
-        // check that the sequence is good
-        final String[] stepSeqences = checkStepSequences();
-        if(stepSeqences == null) { return; }
+        // compile the sequence, which also checks it
+        final Recipe recipe = checkStepSequences();
+        if(recipe == null) {
+            startStopButton.setSelected(false);
+            rampButton.setEnabled(true);
+            return;
+        }
+
+        // list the recipe first the next time the library is searched
+        if(recipeLibrary != null && recipeName != null) {
+            recipeLibrary.markUsed(recipeName);
+        }
 
         // create a swing worker to run the sequence in the background
         SwingWorker worker = new SwingWorker<Boolean, Void>() {
@@ -610,35 +858,61 @@ public class SCKTalkFrame extends JFrame {
 
                 setAccelerationAndMaxTime();
 
+                // record the sequence, noting the start of each step
+                final RunRecorder recorder = startRunRecorder();
+
                 // turn the motor on
                 if(miMTalk != null) {
+                    miMTalk.setRecorder(recorder);
+                    miMTalk.setJerk(jerk);
                     miMTalk.motorOn();
                 } else {
+                    ticTalk.setRecorder(recorder);
                     ticTalk.motorOn();
                 }
 
+                // poll the speed in the background, quickly during the ramps and slowly while dwelling
+                final RPMSampler sampler = startRPMSampler((miMTalk != null) ?
+                        new RPMSampler(miMTalk, 16384) : new RPMSampler(ticTalk, 16384));
+                sampler.setRecorder(recorder);
+
+                // hold the speed of each step on the host if running closed loop
+                final SpeedController controller = (miMTalk != null) ? createSpeedController(sampler) : null;
+
                 // clear the console
                 consoleTextArea.setText("");
 
-                printMessage("Starting Ramp Sequence ...");
+                printMessage("Starting Ramp Sequence ... (" + recipe.getStepCount() + " steps, about " +
+                        Math.round(recipe.getEstimatedSeconds(acceleration)) + " sec)");
 
                 int currentSpeed = 0; // keep track of the current speed to the stepper motor
                 String countDownTime;
                 String speedString;
+                int[] loopCounts = new int[recipe.getLength()];
 
-                // iterate over the lines containing the sequences
+                // run the steps of the compiled sequence
                 outerloop:
-                for(int i = 1; i < stepSeqences.length; i++) {
-                    String[] stepInfo = stepSeqences[i].split("\\s*,\\s*");
-                    int targetSpeed = Integer.parseInt(stepInfo[1]);
-                    int targetSpinTime = Integer.parseInt(stepInfo[2]);
+                for(int i = recipe.first(loopCounts); i >= 0; i = recipe.next(i, loopCounts)) {
+                    String step = recipe.getLabel(i);
+                    int targetSpeed = recipe.getSpeed(i);
+                    int targetSpinTime = recipe.getDwell(i);
+                    int stepAcceleration = recipe.getAcceleration(i, acceleration);
+
+                    printMessage(step + ", " + targetSpeed + " rpms, " + targetSpinTime + " sec");
+                    if(recorder != null) recorder.recordNote("Step " + step + ", " + targetSpeed + " RPM");
+                    sampler.speedChanging();
+
+                    if(recipe.getDirection(i) != Recipe.DIR_KEEP) {
+                        setDirection(recipe.getDirection(i) == Recipe.DIR_CW);
+                    }
 
-                    printMessage(stepInfo[0] + ", " + targetSpeed + " rpms, " + targetSpinTime + " sec");
+                    // the ramp sets the speed, so the controller only runs while the step is held
+                    if(controller != null) controller.stop();
 
                     if(miMTalk !=null) {
                         if(miMTalk.currentMotor == MiMTalk.MotorType.BLDC) {
                             if(targetSpeed > currentSpeed) {
-                                miMTalk.rampToRPM(targetSpeed, acceleration, currentSpeed, speedLabel, spinTimeLabel);
+                                miMTalk.rampToRPM(targetSpeed, stepAcceleration, currentSpeed, speedLabel, spinTimeLabel);
                             } else {
                                 // we are slowing down
                                 miMTalk.setRPM(targetSpeed);
@@ -651,39 +925,62 @@ public class SCKTalkFrame extends JFrame {
                         }
                     } else {
                         // assume we are using tic stepper driver
-                        ticTalk.setAcceleration(acceleration);
-                        ticTalk.setRPM(targetSpeed);
-
-                        // TO-DO wait for motor to get to final speed based on acceleration
-                        float speedRange = Math.abs(targetSpeed - currentSpeed);
-                        float timeToDesiredSpeed = (speedRange/acceleration)*1000;
-                        int speed = 0;
-                        int rampTime = 0;
-                        int delay = 300;
+                        ticTalk.setAcceleration(stepAcceleration);
 
-                        while(rampTime < timeToDesiredSpeed && speed < targetSpeed) {
+                        if(jerk > 0) {
+                            // the Tic can't do S-curves, so the host sends the setpoints
                             try {
-                                if(!sckRunning) break;
-
-                                Thread.sleep(delay);
-                                rampTime += delay + ticTalk.RESPONSE_DELAY_MS;
-
-                                String countUpTime = SCKUtils.zeroPad(rampTime/1000);
-                                spinTimeLabel.setText(countUpTime);
-
-                                speed = ticTalk.getRPM(roundToValue);
-                                speedString = SCKUtils.zeroPad(speed);
-                                speedLabel.setText(speedString);
+                                ticTalk.runTrajectory(Trajectory.compile(currentSpeed, targetSpeed, stepAcceleration,
+                                        jerk, TicTalk.COMMAND_RATE), (speed, elapsedMS) -> {
+                                    spinTimeLabel.setText(SCKUtils.zeroPad((int)elapsedMS/1000));
+                                    speedLabel.setText(SCKUtils.zeroPad(speed));
+                                });
                             } catch (InterruptedException e) {
                                 e.printStackTrace();
                             }
+                        } else {
+                            ticTalk.setRPM(targetSpeed);
+
+                            // TO-DO wait for motor to get to final speed based on acceleration
+                            float speedRange = Math.abs(targetSpeed - currentSpeed);
+                            float timeToDesiredSpeed = (speedRange/stepAcceleration)*1000;
+                            int speed = 0;
+                            int rampTime = 0;
+                            int delay = 300;
+                            long rampStart = System.currentTimeMillis();
+
+                            while(rampTime < timeToDesiredSpeed && speed < targetSpeed) {
+                                try {
+                                    if(!sckRunning) break;
+
+                                    Thread.sleep(delay);
+                                    rampTime = (int)(System.currentTimeMillis() - rampStart);
+
+                                    String countUpTime = SCKUtils.zeroPad(rampTime/1000);
+                                    spinTimeLabel.setText(countUpTime);
+
+                                    speed = sampler.getLatestRPM(roundToValue);
+                                    speedString = SCKUtils.zeroPad(speed);
+                                    speedLabel.setText(speedString);
+                                } catch (InterruptedException e) {
+                                    e.printStackTrace();
+                                }
+                            }
                         }
 
+                        currentSpeed = targetSpeed;
                         System.out.println("Done Ramping Stepper Motor ...");
                     }
 
+                    if(controller != null) controller.start(targetSpeed);
+
+                    // wait for the speed to settle before starting the dwell time
+                    if(recipe.getStableBand(i) > 0) {
+                        waitUntilStable(sampler, targetSpeed, recipe.getStableBand(i));
+                    }
+
                     // update the ramp step label
-                    rampStepLabel.setText("Ramp Step # " + stepInfo[0] + " / " + targetSpeed + " rpms");
+                    rampStepLabel.setText("Ramp Step # " + step + " / " + targetSpeed + " rpms");
 
                     // use a loop to keep track of time this step is running
                     int count = 0;
@@ -699,11 +996,7 @@ public class SCKTalkFrame extends JFrame {
                         spinTimeLabel.setText(countDownTime);
 
                         // get the current rpm
-                        if(miMTalk !=null) {
-                            speedString = SCKUtils.zeroPad(miMTalk.getRPM(roundToValue));
-                        } else {
-                            speedString = SCKUtils.zeroPad(ticTalk.getRPM(roundToValue));
-                        }
+                        speedString = SCKUtils.zeroPad(sampler.getLatestRPM(roundToValue));
 
                         speedLabel.setText(speedString);
 
@@ -720,12 +1013,18 @@ public class SCKTalkFrame extends JFrame {
                 printMessage("\nRamp Sequence Completed ...");
 
                 // stop the motor now
+                if(controller != null) controller.stop();
+                sampler.stop();
+
                 if(miMTalk != null) {
                     miMTalk.motorOff();
+                    miMTalk.setRecorder(null);
                 } else {
                     ticTalk.motorOff();
+                    ticTalk.setRecorder(null);
                 }
 
+                stopRunRecorder(recorder);
                 sckRunning = false;
 
                 // reset the labels and start stop button
@@ -744,35 +1043,66 @@ public class SCKTalkFrame extends JFrame {
     }
 
     /**
-     * Check that the step sequence has no errors
+     * Set the direction the motor spins. Only the Tic can change direction
      *
-     * @return a string array containing the step sequence
+     * @param clockwise
      */
-    private String[] checkStepSequences() {
-        String[] stepSeqences = rampTextArea.getText().split("\n");
+    private void setDirection(boolean clockwise) {
+        if(ticTalk != null) {
+            ticTalk.setDirection(clockwise);
+        } else {
+            printMessage("Direction can't be changed on this unit ...");
+        }
+    }
 
-        // interate over the lines containing the seqences
-        for (int i = 1; i < stepSeqences.length; i++) {
-            String[] stepInfo = stepSeqences[i].split("\\s*,\\s*");
-            String step = stepInfo[0];
+    /**
+     * Wait until the measured speed is within a band of the target speed, the run is stopped, or the
+     * stable timeout
+     *
+     * @param sampler
+     * @param targetSpeed
+     * @param band in rpm
+     */
+    private void waitUntilStable(RPMSampler sampler, int targetSpeed, int band) {
+        long end = System.currentTimeMillis() + Recipe.STABLE_TIMEOUT_S*1000L;
+
+        while(sckRunning && System.currentTimeMillis() < end) {
+            int speed = sampler.getLatestRPM(0);
+            speedLabel.setText(SCKUtils.zeroPad(speed));
+
+            if(speed >= 0 && Math.abs(speed - targetSpeed) <= band) {
+                return;
+            }
 
             try {
-                int speed = Integer.parseInt(stepInfo[1]);
-                int time = Integer.parseInt(stepInfo[2]);
-
-                System.out.println("Checked: " + step + ", " + speed + " rpms, " + time + " sec");
-            } catch(NumberFormatException nfe) {
-                JOptionPane.showMessageDialog(this,
-                        "There is an error in step sequence #" + step + ". Please dobule check ...",
-                        "Step Sequence Error",
-                        JOptionPane.ERROR_MESSAGE);
-
-                stepSeqences = null;
-                break;
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                return;
             }
         }
 
-        return stepSeqences;
+        printMessage("Speed not stable within " + band + " rpms ...");
+    }
+
+    /**
+     * Check that the step sequence has no errors
+     *
+     * @return the compiled step sequence or null if it has an error
+     */
+    private Recipe checkStepSequences() {
+        try {
+            String name = (recipeName != null) ? recipeName : SCKUtils.RAMP_SEQUENCE_FILE;
+            Recipe recipe = Recipe.parse(name, rampTextArea.getText());
+            System.out.println("Checked: " + recipe);
+            return recipe;
+        } catch(IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this,
+                    ex.getMessage() + ". Please dobule check ...",
+                    "Step Sequence Error",
+                    JOptionPane.ERROR_MESSAGE);
+
+            return null;
+        }
     }
 
     /**
@@ -800,6 +1130,79 @@ public class SCKTalkFrame extends JFrame {
         SCKUtils.writeStringToFile(content, filePath);
     }
 
+    /**
+     * Search the recipe library, then load the selected recipe into the ramp sequence or save the ramp sequence
+     * to the library
+     *
+     * @param e
+     */
+    private void recipesButtonActionPerformed(ActionEvent e) {
+        if(recipeLibrary == null) {
+            recipeLibrary = new RecipeLibrary(new File(recipeDirectory), RecipeLibrary.DEFAULT_CACHE_SIZE);
+        }
+
+        // pick up recipes added or changed since the library was last opened, once rather than on every search
+        recipeLibrary.refresh();
+
+        final JTextField searchTextField = new JTextField(30);
+        final DefaultListModel<RecipeLibrary.Entry> listModel = new DefaultListModel<>();
+        final JList<RecipeLibrary.Entry> recipeList = new JList<>(listModel);
+        recipeList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        recipeList.setVisibleRowCount(12);
+
+        // search the index as the query is typed
+        final Runnable search = () -> {
+            listModel.clear();
+            for(RecipeLibrary.Entry entry: recipeLibrary.search(searchTextField.getText())) {
+                listModel.addElement(entry);
+            }
+
+            if(!listModel.isEmpty()) recipeList.setSelectedIndex(0);
+        };
+
+        searchTextField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            public void insertUpdate(javax.swing.event.DocumentEvent de) { search.run(); }
+            public void removeUpdate(javax.swing.event.DocumentEvent de) { search.run(); }
+            public void changedUpdate(javax.swing.event.DocumentEvent de) { search.run(); }
+        });
+
+        search.run();
+
+        JPanel panel = new JPanel(new BorderLayout(0, 5));
+        panel.add(searchTextField, BorderLayout.NORTH);
+        panel.add(new JScrollPane(recipeList), BorderLayout.CENTER);
+        panel.add(new JLabel("Search by name or tag, i.e. PEDOT 3000"), BorderLayout.SOUTH);
+
+        String[] options = {"Load", "Save Ramp Sequence As ...", "Cancel"};
+        int choice = JOptionPane.showOptionDialog(this, panel, "Recipe Library (" + recipeLibrary.size() + ")",
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+
+        if(choice == 0 && recipeList.getSelectedValue() != null) {
+            String name = recipeList.getSelectedValue().getName();
+            String text = recipeLibrary.getText(name);
+
+            if(text != null) {
+                rampTextArea.setText(text);
+                recipeName = name;
+                printMessage("Loaded Recipe: " + recipeList.getSelectedValue());
+            }
+        } else if(choice == 1) {
+            String name = JOptionPane.showInputDialog(this, "Recipe Name", recipeName);
+            if(name == null) return;
+
+            try {
+                Recipe recipe = recipeLibrary.save(name, rampTextArea.getText());
+                recipeName = recipe.getName();
+                printMessage("Saved Recipe: " + recipeLibrary.getEntry(recipeName));
+            } catch(IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(this, ex.getMessage() + ". Please dobule check ...",
+                        "Recipe Error", JOptionPane.ERROR_MESSAGE);
+            } catch(IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
     private void thisWindowClosed(WindowEvent e) {
         exitButtonActionPerformed(null);
     }
@@ -837,7 +1240,13 @@ public class SCKTalkFrame extends JFrame {
                 miMTalk.motorOn();
 
                 try {
-                    miMTalk.getMotorProfile(50);
+                    // keep the profile as the host calibration
+                    CalibrationTable table = miMTalk.calibrate();
+                    table.save(CalibrationTable.DEFAULT_FILENAME);
+
+                    if(hostCalibration) {
+                        miMTalk.setCalibration(table);
+                    }
                 } catch (Exception e) {
                     printMessage("Error Running Profile ...");
                     e.printStackTrace();
@@ -923,6 +1332,7 @@ public class SCKTalkFrame extends JFrame {
         rampStepLabel = new JLabel();
         buttonBar = new JPanel();
         sckComboBox = new JComboBox<>();
+        recipesButton = new JButton();
         clearButton = new JButton();
         exitButton = new JButton();
 
@@ -1093,7 +1503,7 @@ public class SCKTalkFrame extends JFrame {
             {
                 buttonBar.setBorder(Borders.BUTTON_BAR_GAP_BORDER);
                 buttonBar.setLayout(new FormLayout(
-                    "2*($lcgap, default), $glue, $button, $rgap, $button",
+                    "2*($lcgap, default), $glue, $button, $rgap, $button, $rgap, $button",
                     "pref"));
 
                 //---- sckComboBox ----
@@ -1107,15 +1517,20 @@ public class SCKTalkFrame extends JFrame {
                 sckComboBox.addActionListener(e -> sckComboBoxActionPerformed(e));
                 buttonBar.add(sckComboBox, CC.xywh(2, 1, 4, 1));
 
+                //---- recipesButton ----
+                recipesButton.setText("Recipes");
+                recipesButton.addActionListener(e -> recipesButtonActionPerformed(e));
+                buttonBar.add(recipesButton, CC.xy(6, 1));
+
                 //---- clearButton ----
                 clearButton.setText("Clear");
                 clearButton.addActionListener(e -> clearButtonActionPerformed(e));
-                buttonBar.add(clearButton, CC.xy(6, 1));
+                buttonBar.add(clearButton, CC.xy(8, 1));
 
                 //---- exitButton ----
                 exitButton.setText("Exit");
                 exitButton.addActionListener(e -> exitButtonActionPerformed(e));
-                buttonBar.add(exitButton, CC.xy(8, 1));
+                buttonBar.add(exitButton, CC.xy(10, 1));
             }
             dialogPane.add(buttonBar, BorderLayout.SOUTH);
         }
@@ -1164,6 +1579,7 @@ public class SCKTalkFrame extends JFrame {
     private JLabel rampStepLabel;
     private JPanel buttonBar;
     private JComboBox<String> sckComboBox;
+    private JButton recipesButton;
     private JButton clearButton;
     private JButton exitButton;
     // JFormDesigner - End of variables declaration  //GEN-END:variables
@@ -0,0 +1,84 @@
+package org.instras.sck;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A link to an SCK unit. The protocol classes (MiMTalk, TicTalk, etc.) only write command bytes to the transport
+ * and get called back with the bytes which come back, so the same code runs over a serial port, a Bluetooth
+ * SPP connection, or a raw TCP socket to an ESP32 bridge.
+ */
+public interface SCKTransport {
+    /**
+     * Receives the bytes read from the transport
+     */
+    interface Listener {
+        void dataReceived(byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * Open the connection to the device
+     *
+     * @throws IOException if the connection can't be made
+     */
+    void open() throws IOException;
+
+    /**
+     * Set the listener which gets the incoming bytes. Must be called before open
+     *
+     * @param listener
+     */
+    void setListener(Listener listener);
+
+    /**
+     * Write bytes to the device
+     *
+     * @param data
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Indicate whether the transport is connected
+     *
+     * @return
+     */
+    boolean isConnected();
+
+    /**
+     * Close the connection
+     */
+    void close();
+
+    /**
+     * Create the transport for an address. Addresses starting with btspp:// are Bluetooth RFCOMM connection
+     * URLs, tcp://host:port is a raw TCP socket, sim:mim and sim:tic are the MiM and Tic simulators,
+     * replay:file plays back a recorded run with its original timing and replay-fast:file as fast as possible,
+     * and anything else is the name of a serial port
+     *
+     * @param address
+     * @param baudRate the baud rate used for serial ports
+     * @return the transport, not yet opened
+     */
+    static SCKTransport create(String address, int baudRate) {
+        if(address.startsWith("btspp://")) {
+            return new BluetoothTransport(address);
+        } else if(address.equals("sim:mim")) {
+            return new MiMSimulator();
+        } else if(address.equals("sim:tic")) {
+            return new TicSimulator();
+        } else if(address.startsWith("replay:")) {
+            return new ReplayTransport(new File(address.substring("replay:".length())), true);
+        } else if(address.startsWith("replay-fast:")) {
+            return new ReplayTransport(new File(address.substring("replay-fast:".length())), false);
+        } else if(address.startsWith("tcp://")) {
+            String hostPort = address.substring("tcp://".length());
+            int idx = hostPort.lastIndexOf(':');
+            return new TcpTransport(hostPort.substring(0, idx), Integer.parseInt(hostPort.substring(idx + 1)));
+        } else {
+            return new SerialTransport(address, baudRate);
+        }
+    }
+}
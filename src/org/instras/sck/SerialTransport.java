@@ -0,0 +1,91 @@
+package org.instras.sck;
+
+import gnu.io.NRSerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
+
+import java.io.IOException;
+import java.util.TooManyListenersException;
+
+/**
+ * Transport over a serial port, i.e. a USB to UART adapter or a paired Bluetooth module which shows up as a comm
+ * port. Incoming data is read on the serial port's data available events.
+ */
+public class SerialTransport extends StreamTransport implements SerialPortEventListener {
+    private final String portName;
+
+    private final int baudRate;
+
+    private NRSerialPort serial;
+
+    private final byte[] eventBuffer = new byte[128];
+
+    /**
+     * Create a serial transport
+     *
+     * @param portName
+     * @param baudRate
+     */
+    public SerialTransport(String portName, int baudRate) {
+        this.portName = portName;
+        this.baudRate = baudRate;
+    }
+
+    @Override
+    protected void openStreams() throws IOException {
+        serial = new NRSerialPort(portName, baudRate);
+        if(!serial.connect()) {
+            serial = null; // disconnect fails on a port which never connected
+            throw new IOException("Unable to open serial port " + portName);
+        }
+
+        ins = serial.getInputStream();
+        outs = serial.getOutputStream();
+    }
+
+    @Override
+    protected void startReader() {
+        try {
+            serial.addEventListener(this);
+            serial.notifyOnDataAvailable(true);
+        } catch (TooManyListenersException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Called by the serial port when data arrives
+     *
+     * @param event
+     */
+    @Override
+    public void serialEvent(SerialPortEvent event) {
+        if(event.getEventType() != SerialPortEvent.DATA_AVAILABLE) return;
+
+        try {
+            int len;
+            while (ins.available() > 0 && (len = ins.read(eventBuffer)) > 0) {
+                deliver(eventBuffer, len);
+            }
+        } catch (IOException e) {
+            System.out.println("COMM/IO Error. Ignore ...");
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return serial != null && serial.isConnected();
+    }
+
+    @Override
+    protected void closeStreams() {
+        if(serial != null) {
+            serial.disconnect();
+        }
+    }
+
+    @Override
+    protected String getName() {
+        return portName;
+    }
+}
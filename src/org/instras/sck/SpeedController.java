@@ -0,0 +1,297 @@
+package org.instras.sck;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+/**
+ * Optional host side PI speed controller for the BLDC motor. The MiM board sets the pwm for a speed from its
+ * open loop slope and intercept calibration, so a change in load leaves the motor off the set speed. This
+ * controller reads the measured speed from the RPMSampler and trims the speed it commands so the measured speed
+ * holds the setpoint.
+ *
+ * The trim is the PI output. It's limited to +/- the max trim, the integral stops growing while the trim is at
+ * that limit (anti-windup), and the trim can only change at the rate limit so the motor isn't jerked around by
+ * a noisy reading. A new setpoint is commanded straight away, plus the trim found so far.
+ */
+public class SpeedController {
+    private final IntConsumer output; // sends the commanded speed to the motor
+
+    private final RPMSampler.Cursor cursor;
+
+    private final int[] sampleRPMs = new int[256];
+
+    private volatile double kp = 0.2; // rpm of trim per rpm of error
+
+    private volatile double ki = 0.5; // rpm of trim per rpm of error per second
+
+    private volatile double loopFrequency = 5; // loop updates per second
+
+    private volatile int maxTrim = 300; // the most the commanded speed can be moved from the setpoint
+
+    private volatile double rateLimit = 500; // the most the trim can change in rpm per second
+
+    private volatile int setpoint = 0;
+
+    // loop state, only changed by the controller thread once it's running
+    private double integral = 0;
+
+    private double trim = 0;
+
+    private volatile int commandedRPM = 0;
+
+    private volatile int measuredRPM = -1;
+
+    private volatile long updateCount = 0;
+
+    private volatile boolean running = false;
+
+    private volatile Thread controllerThread;
+
+    /**
+     * Create a controller for the MiM BLDC motor
+     *
+     * @param miMTalk
+     * @param sampler the sampler reading the motor speed, which must be running
+     */
+    public SpeedController(final MiMTalk miMTalk, RPMSampler sampler) {
+        this(miMTalk::setRPM, sampler);
+    }
+
+    /**
+     * Create a controller
+     *
+     * @param output sends the commanded speed to the motor
+     * @param sampler the sampler reading the motor speed, which must be running
+     */
+    public SpeedController(IntConsumer output, RPMSampler sampler) {
+        this.output = output;
+        this.cursor = sampler.newCursor();
+    }
+
+    /**
+     * Set the gains
+     *
+     * @param kp the proportional gain
+     * @param ki the integral gain, per second
+     */
+    public void setGains(double kp, double ki) {
+        this.kp = kp;
+        this.ki = ki;
+    }
+
+    /**
+     * Set how often the loop updates. It can't usefully run faster than the sampler
+     *
+     * @param loopFrequency in updates per second
+     */
+    public void setLoopFrequency(double loopFrequency) {
+        this.loopFrequency = Math.max(0.1, loopFrequency);
+    }
+
+    /**
+     * Set the most the commanded speed can be moved from the setpoint
+     *
+     * @param maxTrim in rpm
+     */
+    public void setMaxTrim(int maxTrim) {
+        this.maxTrim = Math.max(0, maxTrim);
+    }
+
+    /**
+     * Set how quickly the trim can change
+     *
+     * @param rateLimit in rpm per second
+     */
+    public void setRateLimit(double rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Set the speed to hold. The new speed is commanded straight away, with the trim found so far
+     *
+     * @param setpoint in rpm
+     */
+    public synchronized void setSetpoint(int setpoint) {
+        this.setpoint = setpoint;
+
+        if(running) {
+            command(setpoint + (int)Math.round(trim));
+        }
+    }
+
+    /**
+     * Get the speed being held
+     *
+     * @return
+     */
+    public int getSetpoint() {
+        return setpoint;
+    }
+
+    /**
+     * Get the speed last sent to the motor
+     *
+     * @return
+     */
+    public int getCommandedRPM() {
+        return commandedRPM;
+    }
+
+    /**
+     * Get the measured speed the last update used
+     *
+     * @return the speed or -1 if there were no samples yet
+     */
+    public int getMeasuredRPM() {
+        return measuredRPM;
+    }
+
+    /**
+     * Get the number of loop updates which had new samples to work with
+     *
+     * @return
+     */
+    public long getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * Start holding the speed. The trim starts from zero
+     *
+     * @param setpoint in rpm
+     */
+    public synchronized void start(int setpoint) {
+        if(running) return;
+
+        this.setpoint = setpoint;
+        integral = 0;
+        trim = 0;
+        commandedRPM = setpoint;
+        running = true;
+
+        // skip the samples taken before the controller started
+        cursor.read(null, sampleRPMs);
+
+        controllerThread = new Thread("Speed Controller") {
+            public void run() {
+                control();
+            }
+        };
+
+        controllerThread.setDaemon(true);
+        controllerThread.start();
+    }
+
+    /**
+     * Stop the controller. The motor is left at the last commanded speed
+     */
+    public synchronized void stop() {
+        running = false;
+
+        if(controllerThread != null) {
+            LockSupport.unpark(controllerThread);
+            controllerThread = null;
+        }
+    }
+
+    /**
+     * Indicate if the controller is running
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * The control loop, run on the controller thread with a deadline for each update
+     */
+    private void control() {
+        long lastUpdate = System.nanoTime();
+        long deadline = lastUpdate;
+
+        // a quick stop and start leaves the old thread to finish on its own
+        while(running && controllerThread == Thread.currentThread()) {
+            long period = (long)(1.0e9/loopFrequency);
+            deadline += period;
+
+            long now = System.nanoTime();
+            if(deadline <= now) {
+                // skip the updates we missed instead of running them back to back
+                deadline = now + period;
+            }
+
+            while(running && (now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(this, deadline - now);
+            }
+
+            if(!running || controllerThread != Thread.currentThread()) break;
+
+            // use the average of the samples taken since the last update
+            int count = cursor.read(null, sampleRPMs);
+            long sum = 0;
+            int valid = 0;
+
+            for(int i = 0; i < count; i++) {
+                if(sampleRPMs[i] >= 0) {
+                    sum += sampleRPMs[i];
+                    valid++;
+                }
+            }
+
+            if(valid == 0) continue;
+
+            now = System.nanoTime();
+            double dt = (now - lastUpdate)/1.0e9;
+            lastUpdate = now;
+
+            update((int)(sum/valid), dt);
+        }
+    }
+
+    /**
+     * Run one update of the PI loop
+     *
+     * @param measured the measured speed
+     * @param dt the time since the last update in seconds
+     */
+    private synchronized void update(int measured, double dt) {
+        if(!running || controllerThread != Thread.currentThread()) return;
+
+        measuredRPM = measured;
+        updateCount++;
+
+        double error = setpoint - measured;
+        double limit = maxTrim;
+
+        // only integrate if it doesn't push the trim further past the limit
+        double newIntegral = integral + ki*error*dt;
+        double wanted = kp*error + newIntegral;
+
+        if(Math.abs(wanted) <= limit || Math.signum(error) != Math.signum(wanted)) {
+            integral = Math.max(-limit, Math.min(limit, newIntegral));
+        }
+
+        wanted = Math.max(-limit, Math.min(limit, kp*error + integral));
+
+        // limit how quickly the trim moves
+        double maxChange = rateLimit*dt;
+        trim += Math.max(-maxChange, Math.min(maxChange, wanted - trim));
+
+        command(setpoint + (int)Math.round(trim));
+    }
+
+    /**
+     * Send the speed to the motor if it changed
+     *
+     * @param rpm
+     */
+    private void command(int rpm) {
+        rpm = Math.max(0, rpm);
+
+        if(rpm != commandedRPM) {
+            commandedRPM = rpm;
+            output.accept(rpm);
+        }
+    }
+}
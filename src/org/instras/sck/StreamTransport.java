@@ -0,0 +1,106 @@
+package org.instras.sck;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Base class for transports built on an input and output stream. By default a daemon thread reads the
+ * input stream and passes the bytes on to the listener as soon as they arrive.
+ */
+public abstract class StreamTransport implements SCKTransport {
+    protected InputStream ins;
+
+    protected OutputStream outs;
+
+    protected Listener listener;
+
+    protected volatile boolean connected = false;
+
+    private final byte[] readBuffer = new byte[128];
+
+    /**
+     * Open the underlying connection and set the input and output streams
+     *
+     * @throws IOException
+     */
+    protected abstract void openStreams() throws IOException;
+
+    /**
+     * Close the underlying connection
+     */
+    protected abstract void closeStreams();
+
+    /**
+     * Return a name for the connection used in messages and the reader thread name
+     *
+     * @return
+     */
+    protected abstract String getName();
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void open() throws IOException {
+        openStreams();
+        connected = true;
+        startReader();
+    }
+
+    /**
+     * Start reading the input stream. Subclasses which get notified of incoming data override this.
+     */
+    protected void startReader() {
+        Thread readerThread = new Thread("SCK Reader " + getName()) {
+            public void run() {
+                try {
+                    int len;
+                    while (connected && (len = ins.read(readBuffer)) > 0) {
+                        deliver(readBuffer, len);
+                    }
+                } catch (IOException e) {
+                    if(connected) {
+                        System.out.println("COMM/IO Error. " + getName() + " closed ...");
+                    }
+                }
+
+                connected = false;
+            }
+        };
+
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Pass the bytes to the listener
+     *
+     * @param buffer
+     * @param length
+     */
+    protected void deliver(byte[] buffer, int length) {
+        if(listener != null) {
+            listener.dataReceived(buffer, 0, length);
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        outs.write(data, offset, length);
+        outs.flush();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+        closeStreams();
+    }
+}
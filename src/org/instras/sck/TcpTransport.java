@@ -0,0 +1,62 @@
+package org.instras.sck;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Transport over a raw TCP socket, i.e. to an ESP32 bridge which passes the bytes on to the SCK's serial port
+ */
+public class TcpTransport extends StreamTransport {
+    private final String host;
+
+    private final int port;
+
+    private int connectTimeout = 3000; // in milliseconds
+
+    private Socket socket;
+
+    /**
+     * Create a TCP transport
+     *
+     * @param host
+     * @param port
+     */
+    public TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Set the time to wait for the connection to be made
+     *
+     * @param connectTimeout the timeout in milliseconds
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    @Override
+    protected void openStreams() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true); // commands are small so send them right away
+        socket.connect(new InetSocketAddress(host, port), connectTimeout);
+
+        ins = socket.getInputStream();
+        outs = socket.getOutputStream();
+    }
+
+    @Override
+    protected void closeStreams() {
+        try {
+            if(socket != null) socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected String getName() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,215 @@
+package org.instras.sck;
+
+/**
+ * In-JVM simulation of the SCK-300S, i.e. the Tic T249 stepper driver behind the ESP32/Arduino bridge running
+ * SCKCommQTPY_ESP32.ino. It plugs in as a transport so TicTalk can run without hardware. The bridge only answers
+ * GetVersion, GetRPM and the x mode byte, the stepper speed is limited by the acceleration set with SetACC, and
+ * the Tic's one second command timeout stops the motor when the bridge is no longer resetting it.
+ */
+public class TicSimulator extends DeviceSimulator {
+    // simulation settings
+    private int commandTimeoutMS = 1000; // the Tic's default command timeout
+
+    private boolean bridgeResetsTimeout = true; // the bridge resets the command timeout while in TIC mode
+
+    // bridge and Tic state
+    private boolean ticMode = false;
+
+    private boolean energized = false;
+
+    private boolean timeoutError = false;
+
+    private int microStep = 4;
+
+    private int stepsPerRev = 96;
+
+    private int maxRPM = 8000;
+
+    private int acceleration = 0; // in rpm/sec, 0 means no limit
+
+    private boolean clockwise = true;
+
+    private int targetRPM = 0;
+
+    private double rpm = 0; // the actual speed of the motor
+
+    private long lastUpdate = System.nanoTime();
+
+    private long lastCommand = System.nanoTime();
+
+    /**
+     * Create a simulator with a fixed random seed so runs are reproducible
+     */
+    public TicSimulator() {
+        this(1234L);
+    }
+
+    /**
+     * Create a simulator
+     *
+     * @param seed the seed for the latency jitter
+     */
+    public TicSimulator(long seed) {
+        super("Tic Simulator", seed);
+    }
+
+    /**
+     * Set the Tic's command timeout
+     *
+     * @param commandTimeoutMS the timeout in milliseconds, or 0 to disable it
+     */
+    public synchronized void setCommandTimeout(int commandTimeoutMS) {
+        this.commandTimeoutMS = commandTimeoutMS;
+    }
+
+    /**
+     * Set whether the bridge keeps resetting the command timeout while in TIC mode, as the sketch does in its loop.
+     * If false, only commands from the host reset the timeout, as if the host was talking to the Tic directly
+     *
+     * @param bridgeResetsTimeout
+     */
+    public synchronized void setBridgeResetsTimeout(boolean bridgeResetsTimeout) {
+        this.bridgeResetsTimeout = bridgeResetsTimeout;
+    }
+
+    /**
+     * Check if the Tic stopped the motor because of a command timeout
+     *
+     * @return
+     */
+    public synchronized boolean hasTimeoutError() {
+        updateMotor();
+        return timeoutError;
+    }
+
+    /**
+     * Run a command against the simulated bridge and Tic board
+     *
+     * @param command
+     * @return the response or null if the bridge doesn't respond
+     */
+    @Override
+    protected String processCommand(String command) {
+        updateMotor();
+
+        // outside of TIC mode the bridge only looks for the mode bytes
+        if(!ticMode) {
+            if(command.equals("x")) {
+                ticMode = true;
+                return "TIC SCK-300S MODE ...";
+            } else if(command.equals("y")) {
+                return "MIM SCK-300[P] MODE ...";
+            }
+
+            return null;
+        }
+
+        lastCommand = System.nanoTime();
+
+        if(command.equals("x")) {
+            ticMode = false;
+            return "TIC MODE DISCONNECT...";
+        }
+
+        String cmd = getCommandName(command);
+        int value = getCommandValue(command); // like String.toInt in the sketch, 0 if not a number
+
+        switch (cmd) {
+            case "GetVersion":
+                return "TIC_SCK v1.0.1";
+            case "SetMicro":
+                microStep = value;
+                break;
+            case "SetSPR":
+                stepsPerRev = value;
+                break;
+            case "SetMaxRPM":
+                maxRPM = value;
+                break;
+            case "SetACC":
+                acceleration = value;
+                break;
+            case "SetRPM":
+                targetRPM = Math.min(Math.max(value, 0), maxRPM);
+                break;
+            case "GetRPM":
+                int currentRPM = (int)Math.round(rpm);
+                if(value != 0) {
+                    currentRPM = ((currentRPM + 5)/10)*10;
+                }
+                return "" + currentRPM;
+            case "SetDIR":
+                clockwise = (value == 0);
+                break;
+            case "STEPon":
+                energized = true;
+                timeoutError = false;
+                break;
+            case "STEPoff":
+                energized = false;
+                targetRPM = 0;
+                rpm = 0;
+                break;
+        }
+
+        return null;
+    }
+
+    /**
+     * Move the motor speed towards the target speed at the set acceleration for the elapsed time
+     */
+    private void updateMotor() {
+        long now = System.nanoTime();
+        double dt = (now - lastUpdate)/1e9;
+
+        // the Tic stops the motor if the command timeout isn't reset in time
+        boolean timeoutReset = ticMode && bridgeResetsTimeout;
+        long timeoutAt = lastCommand + commandTimeoutMS*1000000L;
+
+        if(energized && !timeoutError && !timeoutReset && commandTimeoutMS > 0 && now > timeoutAt) {
+            // run at the old target up to the timeout, then slow down from there
+            double beforeTimeout = Math.max(0, (timeoutAt - lastUpdate)/1e9);
+            advance(beforeTimeout, targetRPM);
+            dt -= beforeTimeout;
+            timeoutError = true;
+        }
+
+        advance(dt, (energized && !timeoutError) ? targetRPM : 0);
+        lastUpdate = now;
+    }
+
+    /**
+     * Move the speed towards the target, limited by the acceleration
+     *
+     * @param dt the time in seconds
+     * @param target the target rpm
+     */
+    private void advance(double dt, double target) {
+        if(acceleration <= 0) {
+            rpm = target;
+        } else if(rpm < target) {
+            rpm = Math.min(target, rpm + acceleration*dt);
+        } else {
+            rpm = Math.max(target, rpm - acceleration*dt);
+        }
+    }
+
+    /**
+     * Get the step frequency the Tic is currently generating
+     *
+     * @return the frequency in steps per second
+     */
+    public synchronized int getStepFrequency() {
+        updateMotor();
+        return (int)(rpm*stepsPerRev*microStep/60.0);
+    }
+
+    /**
+     * Get the direction the motor is set to spin
+     *
+     * @return true for clockwise
+     */
+    public synchronized boolean isClockwise() {
+        return clockwise;
+    }
+}
@@ -1,11 +1,12 @@
 package org.instras.sck;
 
-import gnu.io.NRSerialPort;
-
 import javax.swing.*;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Created with IntelliJ IDEA.
@@ -17,9 +18,8 @@ import java.io.IOException;
  */
 
 public class TicTalk {
-    private NRSerialPort serial;
-    private DataInputStream ins;
-    private DataOutputStream outs;
+    private SCKTransport transport;
+    private CommandPipeline pipeline;
 
     private JTextArea console;
 
@@ -27,6 +27,18 @@ public class TicTalk {
 
     public final int RESPONSE_DELAY_MS = 200; // The response delay in milliseconds
 
+    private int responseTimeout = 1000; // max time in milliseconds to wait for a response line
+
+    public static final int COMMAND_RATE = 20; // setpoints per second sent while running a trajectory
+
+    private final RampScheduler rampScheduler = new RampScheduler(this::setRPM); // runs the host side ramps
+
+    private int bootTimeout = 3000; // max time in milliseconds to wait for the board to boot and send its mode banner
+
+    // pre-encoded command names for the integer commands sent while polling and ramping
+    private static final byte[] GET_RPM = "GetRPM".getBytes();
+    private static final byte[] SET_RPM = "SetRPM".getBytes();
+
     // stepper motor parameters
     private int microstep;
     private int stepsPerRev;
@@ -35,24 +47,44 @@ public class TicTalk {
     /**
      * Method to connect to the serial port
      *
-     * @param portName
+     * @param portName the serial port, or a btspp:// or tcp:// address
      */
-    public void connect(String portName) {
-        if(testMode) return;
+    public void connect(String portName) throws IOException {
+        if(testMode) {
+            connect(new TicSimulator());
+        } else {
+            connect(SCKTransport.create(portName, 19200));
+        }
+    }
 
-        serial = new NRSerialPort(portName, 19200);
-        serial.connect();
+    /**
+     * Method to connect to the Tic bridge over the given transport
+     *
+     * @param transport
+     */
+    public void connect(SCKTransport transport) throws IOException {
+        this.transport = transport;
 
-        ins = new DataInputStream(serial.getInputStream());
-        outs = new DataOutputStream(serial.getOutputStream());
+        // read responses as the data arrives and match them to the commands in flight
+        pipeline = new CommandPipeline(transport, LineFrameCodec.MIM_TERMINATOR);
+        transport.open();
 
-        // set to TIC Mode
+        // set to TIC Mode. Wait for the banner instead of a fixed delay, since only some boards reset on open
         try {
-            Thread.sleep(2000);
-            sendCommand("x");
+            if(pipeline.handshake("x", "TIC SCK-300S MODE", bootTimeout) == null) {
+                System.out.println("No TIC mode banner. Check the connection ...");
+            }
         } catch(InterruptedException e) {}
     }
 
+    /**
+     * Used for testing the API. In test mode connect uses the in-JVM Tic simulator instead of the serial port
+     * @param test
+     */
+    public void setTestMode(boolean test) {
+        this.testMode = test;
+    }
+
     /**
      * Used to pass messages back to the GUI application
      *
@@ -73,21 +105,19 @@ public class TicTalk {
     }
 
     /**
-     * Method to send a command to the MiM board
+     * Method to send a command to the Tic board. The Tic bridge only replies to a few commands, so
+     * the other commands return as soon as they are written
      *
      * @param command
      * @param wfr wait for response
      * @return
      */
-    public synchronized String sendCommand(String command, boolean wfr) {
-        if(testMode) return "OK";
-
+    public String sendCommand(String command, boolean wfr) {
         try {
             //System.out.println("Command: " + command);
-            command += "\r\n";
-            outs.writeBytes(command);
+            Future<String> response = sendCommandAsync(command);
             if(wfr) {
-                return readResponse();
+                return waitForResponse(response);
             } else {
                 return "";
             }
@@ -98,31 +128,51 @@ public class TicTalk {
     }
 
     /**
-     * Method to read the results after a command has been sent
+     * Method to send a command to the Tic board without waiting for the response
+     *
+     * @param command
+     * @return the future response
+     * @throws IOException
+     */
+    public Future<String> sendCommandAsync(String command) throws IOException {
+        return pipeline.submit(command, hasResponse(command));
+    }
+
+    /**
+     * Check if the Tic bridge sends a response line for this command
+     *
+     * @param command
+     * @return
+     */
+    private boolean hasResponse(String command) {
+        return command.startsWith("GetVersion") || command.startsWith("GetRPM") || command.equals("x");
+    }
+
+    /**
+     * Method to read the response to the oldest command still in flight
      *
      * @return
      */
     public String readResponse() {
-        if(testMode) return "TESTMODE";
+        Future<String> response = pipeline.oldestPending();
+        return (response != null) ? waitForResponse(response) : "";
+    }
 
+    /**
+     * Wait for a response up to the response timeout
+     *
+     * @param response
+     * @return the response, or an empty string if nothing arrived before the timeout
+     */
+    private String waitForResponse(Future<String> response) {
         try {
-            // wait 0.200 second so data can arrive from Tic
-            Thread.sleep(RESPONSE_DELAY_MS);
-
-            StringBuilder sb = new StringBuilder(); //ins.readUTF();
-            byte[] buffer = new byte[128];
-            int len = -1;
-
-            while ((len = ins.read(buffer)) > 0 ) {
-                sb.append(new String(buffer,0,len));
-            }
-
-            String response = sb.toString().trim();
-            //System.out.println("Response: " + response);
-            return response;
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
+            return response.get(responseTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            response.cancel(false);
+            return "";
+        } catch (CancellationException e) {
+            return "";
+        } catch (InterruptedException | ExecutionException e) {
             e.printStackTrace();
         }
 
@@ -180,13 +230,45 @@ public class TicTalk {
         sendCommand("SetACC," + rpmPerSec);
     }
 
+    /**
+     * Method to set the direction the motor spins
+     *
+     * @param clockwise
+     */
+    public void setDirection(boolean clockwise) {
+        sendCommand("SetDIR," + (clockwise ? 0 : 1));
+    }
+
     /**
      * Method to set the rpm
      *
      * @param desiredRPM
      */
     public void setRPM(int desiredRPM) {
-        sendCommand("SetRPM," + desiredRPM);
+        try {
+            pipeline.sendInt(SET_RPM, desiredRPM);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Run a compiled ramp from the host, i.e. an S-curve which the Tic can't do itself. The Tic's own acceleration
+     * should be set to at least the max acceleration of the trajectory so it keeps up with the setpoints
+     *
+     * @param trajectory
+     * @param listener called after each setpoint, or null
+     * @return true if the ramp reached the end speed, false if it was stopped
+     */
+    public boolean runTrajectory(Trajectory trajectory, RampScheduler.Listener listener) throws InterruptedException {
+        return rampScheduler.run(trajectory, listener);
+    }
+
+    /**
+     * Stop the trajectory being run
+     */
+    public void stopRamp() {
+        rampScheduler.stop();
     }
 
     /**
@@ -198,23 +280,62 @@ public class TicTalk {
         int rpm = -1;
 
         try {
-            String response = sendCommand("GetRPM,0");
-            rpm = Integer.parseInt(response.trim());
+            int value = pipeline.queryInt(GET_RPM, 0, responseTimeout);
 
-            if (roundTo > 0) {
-                rpm = (int) (Math.round(rpm / roundTo) * roundTo);
+            if(value != LineFrameCodec.NO_VALUE) {
+                rpm = value;
+
+                if (roundTo > 0) {
+                    rpm = (int) (Math.round(rpm / roundTo) * roundTo);
+                }
             }
-        } catch(NumberFormatException nfe) {}
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
         return rpm;
     }
 
+    /**
+     * Get the round trip latency, timeout and byte counts of the commands sent to the Tic bridge
+     *
+     * @return
+     */
+    public CommandStats getStats() {
+        return pipeline.getStats();
+    }
+
+    /**
+     * Record every command and response to a run file
+     *
+     * @param recorder the recorder, or null to stop recording
+     */
+    public void setRecorder(RunRecorder recorder) {
+        pipeline.setRecorder(recorder);
+    }
+
+    /**
+     * Print the command stats to the console at a fixed period
+     *
+     * @param periodMS the time between dumps in milliseconds
+     */
+    public void startStatsDump(long periodMS) {
+        pipeline.getStats().startDump(periodMS, this::print);
+    }
+
+    /**
+     * Stop printing the command stats
+     */
+    public void stopStatsDump() {
+        pipeline.getStats().stopDump();
+    }
+
     /**
      * Method to close the serial port
      */
     public void close() {
-        if(testMode) return;
-
         try {
             sendCommand("x");
             Thread.sleep(500);
@@ -222,16 +343,17 @@ public class TicTalk {
             e.printStackTrace();
         }
 
-        serial.disconnect();
+        stopStatsDump();
+        transport.close();
     }
 
     /**
-     * Indicate whether the serial port is connected
+     * Indicate whether the transport is connected
      * @return
      */
     public boolean isConnected() {
-        if(serial != null) {
-            return serial.isConnected();
+        if(transport != null) {
+            return transport.isConnected();
         }
         return false;
     }
@@ -0,0 +1,188 @@
+package org.instras.sck;
+
+import java.util.Arrays;
+
+/**
+ * A speed ramp compiled ahead of time into timestamped setpoints, kept in primitive arrays so running it is just
+ * a matter of looking up the setpoint for the current time. A trajectory is built from the start and end speed,
+ * the acceleration, an optional jerk limit and the rate the device can take commands at, so the same
+ * trajectory can drive the MiM BLDC motor, the MiM stepper motor or the Tic.
+ *
+ * Without a jerk limit the speed ramps linearly (a trapezoidal profile). With one, the acceleration builds up and
+ * tails off at the jerk limit (an S-curve), which stops the ball bearing motors overshooting when the ramp ends.
+ */
+public class Trajectory {
+    private final long[] times; // nanoseconds from the start of the ramp
+
+    private final int[] rpms;
+
+    private final int length;
+
+    private Trajectory(long[] times, int[] rpms, int length) {
+        this.times = times;
+        this.rpms = rpms;
+        this.length = length;
+    }
+
+    /**
+     * Compile a ramp
+     *
+     * @param startRPM
+     * @param endRPM
+     * @param acceleration the max acceleration in rpm per second, 0 or less to go straight to the end speed
+     * @param jerk the jerk limit in rpm per second squared, 0 or less for a trapezoidal profile
+     * @param commandRate the max number of setpoints per second the device can take
+     * @return
+     */
+    public static Trajectory compile(int startRPM, int endRPM, double acceleration, double jerk, double commandRate) {
+        double rpmDiff = Math.abs(endRPM - startRPM);
+        int direction = (endRPM >= startRPM) ? 1 : -1;
+
+        if(rpmDiff == 0 || acceleration <= 0) {
+            return new Trajectory(new long[] {0}, new int[] {endRPM}, 1);
+        }
+
+        // work out the length of each phase, in seconds
+        double jerkTime; // time to build up to the peak acceleration, and to tail off from it
+        double constantTime; // time at the peak acceleration
+        double peakAcceleration;
+
+        if(jerk <= 0) {
+            jerkTime = 0;
+            peakAcceleration = acceleration;
+            constantTime = rpmDiff/acceleration;
+        } else if(rpmDiff >= acceleration*acceleration/jerk) {
+            jerkTime = acceleration/jerk;
+            peakAcceleration = acceleration;
+            constantTime = rpmDiff/acceleration - jerkTime;
+        } else {
+            // too short a change to reach the max acceleration
+            jerkTime = Math.sqrt(rpmDiff/jerk);
+            peakAcceleration = jerk*jerkTime;
+            constantTime = 0;
+        }
+
+        double duration = 2*jerkTime + constantTime;
+        double period = 1.0/Math.max(commandRate, 0.001);
+
+        int maxPoints = (int)Math.ceil(duration/period) + 2;
+        long[] times = new long[maxPoints];
+        int[] rpms = new int[maxPoints];
+        int length = 0;
+
+        for(int i = 0; i*period < duration; i++) {
+            double t = i*period;
+            double change;
+
+            if(t < jerkTime) {
+                change = jerk*t*t/2;
+            } else if(t < jerkTime + constantTime) {
+                change = peakAcceleration*jerkTime/2 + peakAcceleration*(t - jerkTime);
+            } else if(jerkTime > 0) {
+                double remaining = duration - t;
+                change = rpmDiff - jerk*remaining*remaining/2;
+            } else {
+                change = rpmDiff;
+            }
+
+            int rpm = startRPM + direction*(int)Math.round(Math.min(change, rpmDiff));
+
+            // no point sending the same speed twice
+            if(length > 0 && rpms[length - 1] == rpm) continue;
+
+            times[length] = (long)(t*1.0e9);
+            rpms[length] = rpm;
+            length++;
+        }
+
+        if(length == 0 || rpms[length - 1] != endRPM) {
+            times[length] = (long)(duration*1.0e9);
+            rpms[length] = endRPM;
+            length++;
+        }
+
+        return new Trajectory(times, rpms, length);
+    }
+
+    /**
+     * Compile a trapezoidal ramp, with the speed changing linearly
+     *
+     * @param startRPM
+     * @param endRPM
+     * @param acceleration in rpm per second
+     * @param commandRate the max number of setpoints per second
+     * @return
+     */
+    public static Trajectory trapezoid(int startRPM, int endRPM, double acceleration, double commandRate) {
+        return compile(startRPM, endRPM, acceleration, 0, commandRate);
+    }
+
+    /**
+     * Get the number of setpoints
+     *
+     * @return
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Get the time of a setpoint
+     *
+     * @param index
+     * @return the time in nanoseconds from the start of the ramp
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * Get the speed of a setpoint
+     *
+     * @param index
+     * @return
+     */
+    public int getRPM(int index) {
+        return rpms[index];
+    }
+
+    /**
+     * Get the speed the ramp ends at
+     *
+     * @return
+     */
+    public int getEndRPM() {
+        return rpms[length - 1];
+    }
+
+    /**
+     * Get the time the ramp takes
+     *
+     * @return the time in nanoseconds
+     */
+    public long getDuration() {
+        return times[length - 1];
+    }
+
+    /**
+     * Find the setpoint which should be in effect at a time
+     *
+     * @param elapsedNanos the time from the start of the ramp
+     * @return the index of the last setpoint at or before the time
+     */
+    public int indexAt(long elapsedNanos) {
+        int idx = Arrays.binarySearch(times, 0, length, elapsedNanos);
+        return (idx >= 0) ? idx : Math.max(0, -idx - 2);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        for(int i = 0; i < length; i++) {
+            sb.append(times[i]/1000000L).append(" ms\t").append(rpms[i]).append(" rpm\n");
+        }
+
+        return sb.toString();
+    }
+}